@@ -0,0 +1,205 @@
+package com.sftxy.lucene.store.mongodb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Read paths of {@link ByteBufferIndexInput} over chunks of various sizes, against Lucene's {@link MMapDirectory}
+ * input as a baseline.
+ *
+ * <p>Each benchmark method does {@link #OPS} operations at the positions of the access pattern: {@code sequential}
+ * walks the file, {@code random} jumps anywhere, {@code boundary} reads across the end of a chunk every time.
+ * For {@code mmap}, chunks are only used to place the {@code boundary} positions.</p>
+ *
+ * <p>Run with {@code gradle jmh}, passing JMH options as {@code -Pjmh="ByteBufferIndexInputBenchmark -p impl=mongodb"}.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteBufferIndexInputBenchmark {
+
+    static final int OPS = 4096;
+
+    private static final int LENGTH = 32 << 20;
+
+    @Param({"mongodb", "mmap"})
+    public String impl;
+
+    /** 255 KB is the GridFS default chunk size. */
+    @Param({"4096", "65536", "261120", "1048576"})
+    public int chunkSize;
+
+    @Param({"sequential", "random", "boundary"})
+    public String pattern;
+
+    private Path dir;
+    private MMapDirectory mmapDir;
+    private IndexInput input;
+    private RandomAccessInput randomAccess;
+    private long[] positions;
+    private final byte[] bytes = new byte[1024];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final byte[] data = new byte[LENGTH];
+        new Random(0).nextBytes(data);
+
+        if (impl.equals("mongodb")) {
+            final ByteBuffer[] buffers = new ByteBuffer[LENGTH / chunkSize + 1];
+            for (int i = 0; i < buffers.length; i++) {
+                final int offset = i * chunkSize;
+                final int length = Math.min(chunkSize, LENGTH - offset);
+                buffers[i] = ByteBuffer.wrap(data, offset, length).slice();
+            }
+            input = ByteBufferIndexInput.newInstance("bench", buffers, LENGTH, chunkSize, false);
+        } else {
+            dir = Files.createTempDirectory("bench");
+            mmapDir = new MMapDirectory(dir);
+            try (IndexOutput out = mmapDir.createOutput("bench", IOContext.DEFAULT)) {
+                out.writeBytes(data, data.length);
+            }
+            input = mmapDir.openInput("bench", IOContext.DEFAULT);
+        }
+        randomAccess = (RandomAccessInput) input;
+
+        // leave room for the longest read, bytes.length
+        final long max = LENGTH - bytes.length;
+        final Random random = new Random(1);
+        positions = new long[OPS];
+        for (int i = 0; i < OPS; i++) {
+            switch (pattern) {
+                case "sequential":
+                    positions[i] = (long) i * bytes.length % max;
+                    break;
+                case "random":
+                    positions[i] = (long) (random.nextDouble() * max);
+                    break;
+                case "boundary":
+                    final long chunk = 1 + random.nextInt((int) (max / chunkSize));
+                    positions[i] = chunk * chunkSize - 1 - random.nextInt(7);
+                    break;
+                default:
+                    throw new IllegalArgumentException(pattern);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        input.close();
+        if (mmapDir != null) {
+            mmapDir.close();
+            IOUtils.rm(dir);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPS)
+    public void readByte(Blackhole bh) throws IOException {
+        for (long pos : positions) {
+            input.seek(pos);
+            bh.consume(input.readByte());
+            bh.consume(input.readByte());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPS)
+    public void readBytes(Blackhole bh) throws IOException {
+        for (long pos : positions) {
+            input.seek(pos);
+            input.readBytes(bytes, 0, bytes.length);
+        }
+        bh.consume(bytes);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPS)
+    public void readInt(Blackhole bh) throws IOException {
+        for (long pos : positions) {
+            input.seek(pos);
+            bh.consume(input.readInt());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPS)
+    public void readLong(Blackhole bh) throws IOException {
+        for (long pos : positions) {
+            input.seek(pos);
+            bh.consume(input.readLong());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPS)
+    public void readIntAt(Blackhole bh) throws IOException {
+        for (long pos : positions) {
+            bh.consume(randomAccess.readInt(pos));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPS)
+    public void readLongAt(Blackhole bh) throws IOException {
+        for (long pos : positions) {
+            bh.consume(randomAccess.readLong(pos));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPS)
+    public void seek(Blackhole bh) throws IOException {
+        for (long pos : positions) {
+            input.seek(pos);
+        }
+        bh.consume(input.getFilePointer());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPS)
+    public void cloneAndSeek(Blackhole bh) throws IOException {
+        for (long pos : positions) {
+            final IndexInput clone = input.clone();
+            clone.seek(pos);
+            bh.consume(clone);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(OPS)
+    public void slice(Blackhole bh) throws IOException {
+        for (long pos : positions) {
+            bh.consume(input.slice("slice", pos, bytes.length));
+        }
+    }
+}
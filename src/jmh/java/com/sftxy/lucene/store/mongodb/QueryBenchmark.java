@@ -0,0 +1,188 @@
+package com.sftxy.lucene.store.mongodb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Queries dominated by term dictionary and postings decoding, over {@link ByteBufferIndexInput} and over
+ * Lucene's {@link MMapDirectory} as a baseline.
+ *
+ * <p>The index is written once to a temporary {@link MMapDirectory}. For {@code mongodb}, each file is read into
+ * heap chunks of {@link #chunkSize} bytes, as they would be fetched from fs.chunks, so no server is needed.
+ * {@code termLookups} seeks rare terms, {@code prefix} enumerates many terms of the dictionary and
+ * {@code conjunctions} decodes long postings lists.</p>
+ *
+ * <p>Run with {@code gradle jmh -Pjmh="QueryBenchmark"}.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+    private static final int DOCS = 200_000;
+    private static final int WORDS_PER_DOC = 20;
+    private static final int VOCABULARY = 100_000;
+    private static final int QUERIES = 64;
+
+    @Param({"mongodb", "mmap"})
+    public String impl;
+
+    @Param({"65536", "261120"})
+    public int chunkSize;
+
+    private Path path;
+    private MMapDirectory mmapDir;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+    private TermQuery[] rare;
+    private PrefixQuery[] prefixes;
+    private BooleanQuery[] conjunctions;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        path = Files.createTempDirectory("bench");
+        mmapDir = new MMapDirectory(path);
+        final FieldType type = new FieldType();
+        type.setIndexOptions(IndexOptions.DOCS_AND_FREQS);
+        type.setTokenized(false);
+        type.freeze();
+        final Random random = new Random(0);
+        try (IndexWriter writer = new IndexWriter(mmapDir, new IndexWriterConfig(null).setRAMBufferSizeMB(64))) {
+            for (int i = 0; i < DOCS; i++) {
+                final Document doc = new Document();
+                for (int w = 0; w < WORDS_PER_DOC; w++) {
+                    doc.add(new Field("body", word(random), type));
+                }
+                writer.addDocument(doc);
+            }
+            writer.forceMerge(1);
+        }
+
+        final Directory dir = impl.equals("mongodb") ? new ChunkedDirectory(mmapDir, chunkSize) : mmapDir;
+        reader = DirectoryReader.open(dir);
+        searcher = new IndexSearcher(reader);
+        searcher.setQueryCache(null);
+
+        rare = new TermQuery[QUERIES];
+        prefixes = new PrefixQuery[QUERIES];
+        conjunctions = new BooleanQuery[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            rare[i] = new TermQuery(new Term("body", Integer.toString(VOCABULARY / 2 + random.nextInt(VOCABULARY / 2), 36)));
+            prefixes[i] = new PrefixQuery(new Term("body", Integer.toString(36 + random.nextInt(36 * 35), 36)));
+            final BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            builder.add(new TermQuery(new Term("body", Integer.toString(random.nextInt(16), 36))), BooleanClause.Occur.MUST);
+            builder.add(new TermQuery(new Term("body", Integer.toString(random.nextInt(64), 36))), BooleanClause.Occur.MUST);
+            conjunctions[i] = builder.build();
+        }
+    }
+
+    /** Skewed so that a few words are in most documents and most words in few. */
+    private static String word(Random random) {
+        final double x = random.nextDouble();
+        return Integer.toString((int) (VOCABULARY * x * x * x), 36);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.close();
+        mmapDir.close();
+        IOUtils.rm(path);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int termLookups() throws IOException {
+        int hits = 0;
+        for (TermQuery query : rare) {
+            hits += searcher.count(query);
+        }
+        return hits;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int prefix() throws IOException {
+        int hits = 0;
+        for (PrefixQuery query : prefixes) {
+            hits += searcher.count(query);
+        }
+        return hits;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(QUERIES)
+    public int conjunctions() throws IOException {
+        int hits = 0;
+        for (BooleanQuery query : conjunctions) {
+            hits += searcher.count(query);
+        }
+        return hits;
+    }
+
+    /**
+     * Opens files as {@link ByteBufferIndexInput}s over heap chunks copied from the wrapped directory.
+     */
+    private static final class ChunkedDirectory extends FilterDirectory {
+        private final int chunkSize;
+
+        ChunkedDirectory(Directory in, int chunkSize) {
+            super(in);
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        public IndexInput openInput(String name, IOContext context) throws IOException {
+            try (IndexInput input = in.openInput(name, context)) {
+                final long length = input.length();
+                final ByteBuffer[] buffers = new ByteBuffer[(int) (length / chunkSize) + 1];
+                for (int i = 0; i < buffers.length; i++) {
+                    final byte[] chunk = new byte[(int) Math.min(chunkSize, length - (long) i * chunkSize)];
+                    input.readBytes(chunk, 0, chunk.length);
+                    buffers[i] = ByteBuffer.wrap(chunk);
+                }
+                return ByteBufferIndexInput.newInstance(name, buffers, length, chunkSize, false);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.sftxy.lucene.store.mongodb;
+
+/**
+ * Picks the GridFS bucket holding the files of each {@link MongodbDirectory} prefix: its {@code <bucket>.files},
+ * {@code <bucket>.chunks}, {@code <bucket>.locks}, {@code <bucket>.manifests} and {@code <bucket>.syncs} collections.
+ *
+ * <p>File names keep their prefix whatever the bucket, so prefixes may share a bucket. Giving prefixes separate
+ * buckets spreads their chunks over several collections, which can be sharded or placed independently. Moving a
+ * prefix to another bucket requires copying its files, see {@link MongodbBuckets#migrate}.</p>
+ *
+ * @see MongodbDirectory#MongodbDirectory(com.mongodb.client.MongoDatabase, String, BucketNaming)
+ */
+public abstract class BucketNaming {
+
+    /**
+     * Keeps all prefixes in the default {@code fs} bucket.
+     */
+    public static final BucketNaming SHARED = of("fs");
+
+    /**
+     * Gives each prefix its own {@code fs_<prefix>} bucket. Characters other than letters, digits, '-' and '_' are
+     * replaced by '_', and long prefixes are shortened with a hash.
+     */
+    public static final BucketNaming PER_PREFIX = new BucketNaming() {
+        @Override
+        public String bucket(String prefix) {
+            final StringBuilder sb = new StringBuilder("fs_");
+            for (int i = 0; i < prefix.length(); i++) {
+                final char c = prefix.charAt(i);
+                sb.append((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_' ? c : '_');
+            }
+            if (sb.length() > 64) {
+                // collection names are limited, keep them distinct with the hash of the whole prefix
+                sb.setLength(52);
+                sb.append('_').append(Integer.toHexString(prefix.hashCode()));
+            }
+            return sb.toString();
+        }
+    };
+
+    /**
+     * Returns the given bucket for all prefixes.
+     */
+    public static BucketNaming of(String bucket) {
+        if (bucket.isEmpty()) {
+            throw new IllegalArgumentException("bucket must not be empty");
+        }
+        return new BucketNaming() {
+            @Override
+            public String bucket(String prefix) {
+                return bucket;
+            }
+        };
+    }
+
+    /**
+     * Spreads prefixes by hash over {@code count} buckets, {@code fs_0} to {@code fs_<count - 1>}.
+     */
+    public static BucketNaming groups(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be >= 1, got " + count);
+        }
+        return new BucketNaming() {
+            @Override
+            public String bucket(String prefix) {
+                return "fs_" + Math.floorMod(prefix.hashCode(), count);
+            }
+        };
+    }
+
+    /**
+     * Returns the bucket of the given prefix. Must always return the same bucket for a prefix.
+     */
+    public abstract String bucket(String prefix);
+}
@@ -2,55 +2,102 @@ package com.sftxy.lucene.store.mongodb;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
 
 import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.BitUtil;
+import org.apache.lucene.util.WeakIdentityMap;
 
 /**
  * Inspired by Lucene's {@link org.apache.lucene.store.ByteBufferIndexInput}.
+ *
+ * <p>An input and all of its clones and slices share the same chunks, either an array of buffers given upfront
+ * or a {@link ChunkTable} fetching chunks on first access. The shared buffers are never positioned: each input
+ * reads them with absolute gets, and only holds its range of the file and its position in the current chunk.
+ * Cloning, slicing and seeking allocate nothing per chunk, whatever the file size.</p>
+ *
+ * <p>Positions are addressed with a shift and a mask when the chunk size is a power of two, as written by
+ * {@link ChunkSizePolicy#DEFAULT}, and by division otherwise, e.g. for the 255 KB GridFS default. File
+ * pointers are longs, files may be larger than 2 GB.</p>
+ *
+ * <p>When the buffers may be freed on close (off-heap data), clones are tracked so that closing the
+ * original input makes them throw {@link AlreadyClosedException} instead of reading freed memory.</p>
  */
 abstract class ByteBufferIndexInput extends IndexInput implements RandomAccessInput {
     protected final long length;
-    protected final int chunkSize;
 
-    protected ByteBuffer[] buffers;
-    protected int curBufIndex = -1;
-    protected ByteBuffer curBuf; // redundant for speed: buffers[curBufIndex]
+    protected ByteBuffer curBuf; // shared buffer of the current chunk, null once closed
+    protected int curPos; // position in curBuf
+    protected int curLimit; // end of this input in curBuf
+    private ByteBuffer curView; // duplicate of curBuf for bulk reads without a backing array, created on demand
 
     protected boolean isClone = false;
+    protected WeakIdentityMap<ByteBufferIndexInput, Boolean> clones; // null when clones are not tracked
 
-    public static ByteBufferIndexInput newInstance(String resourceDescription, ByteBuffer[] buffers, long length, int chunkSize) {
+    /**
+     * Creates an input over the given buffers of {@code chunkSize} bytes each, but the last ones. There must be
+     * one buffer more than the number of full chunks, possibly empty, so that the file length can be addressed.
+     * The buffers must not be positioned anymore.
+     */
+    public static ByteBufferIndexInput newInstance(String resourceDescription, ByteBuffer[] buffers, long length, int chunkSize, boolean trackClones) {
+        final ByteBufferIndexInput input;
         if (buffers.length == 1) {
-            return new SingleBufferImpl(resourceDescription, buffers[0], length, chunkSize);
+            input = new SingleBufferImpl(resourceDescription, buffers[0], 0, (int) length);
         } else {
-            return new MultiBufferImpl(resourceDescription, buffers, 0, length, chunkSize);
+            try {
+                input = new MultiBufferImpl(resourceDescription, buffers, null, 0L, length, chunkSize, 0L);
+            } catch (IOException ioe) {
+                throw new AssertionError(ioe);
+            }
+        }
+        if (trackClones) {
+            input.clones = WeakIdentityMap.newConcurrentHashMap();
+        }
+        return input;
+    }
+
+    /**
+     * Creates an input which fetches chunks from the given table on first access.
+     */
+    public static ByteBufferIndexInput newInstance(String resourceDescription, ChunkTable table, boolean trackClones) throws IOException {
+        final ByteBufferIndexInput input = new MultiBufferImpl(resourceDescription, null, table, 0L, table.length(), table.chunkSize(), 0L);
+        if (trackClones) {
+            input.clones = WeakIdentityMap.newConcurrentHashMap();
         }
+        return input;
     }
 
-    ByteBufferIndexInput(String resourceDescription, ByteBuffer[] buffers, long length, int chunkSize) {
+    ByteBufferIndexInput(String resourceDescription, long length) {
         super(resourceDescription);
-        this.buffers = buffers;
         this.length = length;
-        this.chunkSize = chunkSize;
     }
 
+    /**
+     * Makes the given buffer the current one.
+     */
+    protected final void setCurBuf(ByteBuffer buffer, int pos, int limit) {
+        curBuf = buffer;
+        curPos = pos;
+        curLimit = limit;
+        curView = null;
+    }
+
+    /**
+     * Moves to the start of the next chunk, leaving the position unchanged if there is none.
+     */
+    protected abstract void nextBuffer() throws IOException;
+
     @Override
     public final byte readByte() throws IOException {
         try {
-            return curBuf.get();
-        } catch (BufferUnderflowException e) {
-            do {
-                curBufIndex++;
-                if (curBufIndex >= buffers.length) {
-                    throw new EOFException("read past EOF: " + this);
-                }
-                curBuf = buffers[curBufIndex];
-                curBuf.position(0);
-            } while (!curBuf.hasRemaining());
-            return curBuf.get();
+            if (curPos == curLimit) {
+                nextBuffer();
+            }
+            return curBuf.get(curPos++);
         } catch (NullPointerException npe) {
             throw new AlreadyClosedException("Already closed: " + this);
         }
@@ -59,32 +106,47 @@ abstract class ByteBufferIndexInput extends IndexInput implements RandomAccessIn
     @Override
     public final void readBytes(byte[] b, int offset, int len) throws IOException {
         try {
-            curBuf.get(b, offset, len);
-        } catch (BufferUnderflowException e) {
-            int curAvail = curBuf.remaining();
+            int curAvail = curLimit - curPos;
             while (len > curAvail) {
-                curBuf.get(b, offset, curAvail);
+                copy(b, offset, curAvail);
                 len -= curAvail;
                 offset += curAvail;
-                curBufIndex++;
-                if (curBufIndex >= buffers.length) {
-                    throw new EOFException("read past EOF: " + this);
-                }
-                curBuf = buffers[curBufIndex];
-                curBuf.position(0);
-                curAvail = curBuf.remaining();
+                nextBuffer();
+                curAvail = curLimit - curPos;
             }
-            curBuf.get(b, offset, len);
+            copy(b, offset, len);
         } catch (NullPointerException npe) {
             throw new AlreadyClosedException("Already closed: " + this);
         }
     }
 
+    /**
+     * Copies bytes from the current buffer, which has enough remaining.
+     */
+    private void copy(byte[] b, int offset, int len) {
+        if (curBuf.hasArray()) {
+            System.arraycopy(curBuf.array(), curBuf.arrayOffset() + curPos, b, offset, len);
+        } else {
+            // there is no absolute bulk get before Java 13
+            if (curView == null) {
+                curView = curBuf.duplicate();
+            }
+            curView.position(curPos);
+            curView.get(b, offset, len);
+        }
+        curPos += len;
+    }
+
+    // across a boundary, the super implementations assemble the value with readByte()
+
     @Override
     public final short readShort() throws IOException {
         try {
-            return curBuf.getShort();
-        } catch (BufferUnderflowException e) {
+            if (curLimit - curPos >= Short.BYTES) {
+                final short v = curBuf.getShort(curPos);
+                curPos += Short.BYTES;
+                return v;
+            }
             return super.readShort();
         } catch (NullPointerException npe) {
             throw new AlreadyClosedException("Already closed: " + this);
@@ -94,8 +156,11 @@ abstract class ByteBufferIndexInput extends IndexInput implements RandomAccessIn
     @Override
     public final int readInt() throws IOException {
         try {
-            return curBuf.getInt();
-        } catch (BufferUnderflowException e) {
+            if (curLimit - curPos >= Integer.BYTES) {
+                final int v = curBuf.getInt(curPos);
+                curPos += Integer.BYTES;
+                return v;
+            }
             return super.readInt();
         } catch (NullPointerException npe) {
             throw new AlreadyClosedException("Already closed: " + this);
@@ -105,111 +170,110 @@ abstract class ByteBufferIndexInput extends IndexInput implements RandomAccessIn
     @Override
     public final long readLong() throws IOException {
         try {
-            return curBuf.getLong();
-        } catch (BufferUnderflowException e) {
+            if (curLimit - curPos >= Long.BYTES) {
+                final long v = curBuf.getLong(curPos);
+                curPos += Long.BYTES;
+                return v;
+            }
             return super.readLong();
         } catch (NullPointerException npe) {
             throw new AlreadyClosedException("Already closed: " + this);
         }
     }
 
-    @Override
-    public long getFilePointer() {
-        try {
-            return curBufIndex * chunkSize + curBuf.position();
-        } catch (NullPointerException npe) {
-            throw new AlreadyClosedException("Already closed: " + this);
-        }
-    }
+    // variable-length values are decoded from the current buffer when it holds the longest encoding, so the
+    // bytes are read without a virtual call or a boundary check each
 
     @Override
-    public void seek(long pos) throws IOException {
-        // we use >> here to preserve negative, so we will catch AIOOBE,
-        // in case pos + offset overflows.
-        final int bi = (int) (pos / chunkSize);
+    public final int readVInt() throws IOException {
         try {
-            if (bi == curBufIndex) {
-                curBuf.position((int) (pos % chunkSize));
-            } else {
-                final ByteBuffer b = buffers[bi];
-                b.position((int) (pos % chunkSize));
-                // write values, on exception all is unchanged
-                this.curBufIndex = bi;
-                this.curBuf = b;
+            if (curLimit - curPos < 5) {
+                return super.readVInt();
             }
-        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
-            throw new EOFException("seek past EOF: " + this);
+            final ByteBuffer buf = curBuf;
+            int pos = curPos;
+            byte b = buf.get(pos++);
+            int i = b & 0x7F;
+            for (int shift = 7; b < 0 && shift < 28; shift += 7) {
+                b = buf.get(pos++);
+                i |= (b & 0x7F) << shift;
+            }
+            if (b < 0) {
+                b = buf.get(pos++);
+                if ((b & 0xF0) != 0) {
+                    throw new IOException("Invalid vInt detected (too many bits)");
+                }
+                i |= (b & 0x0F) << 28;
+            }
+            curPos = pos;
+            return i;
         } catch (NullPointerException npe) {
             throw new AlreadyClosedException("Already closed: " + this);
         }
     }
 
     @Override
-    public byte readByte(long pos) throws IOException {
-        try {
-            final int bi = (int) (pos / chunkSize);
-            return buffers[bi].get((int) (pos % chunkSize));
-        } catch (IndexOutOfBoundsException ioobe) {
-            throw new EOFException("seek past EOF: " + this);
-        } catch (NullPointerException npe) {
-            throw new AlreadyClosedException("Already closed: " + this);
-        }
-    }
-
-    // used only by random access methods to handle reads across boundaries
-    private void setPos(long pos, int bi) throws IOException {
+    public final long readVLong() throws IOException {
         try {
-            final ByteBuffer b = buffers[bi];
-            b.position((int) (pos % chunkSize));
-            this.curBufIndex = bi;
-            this.curBuf = b;
-        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException aioobe) {
-            throw new EOFException("seek past EOF: " + this);
+            if (curLimit - curPos < 9) {
+                return super.readVLong();
+            }
+            return readVLongInBuffer(false);
         } catch (NullPointerException npe) {
             throw new AlreadyClosedException("Already closed: " + this);
         }
     }
 
     @Override
-    public short readShort(long pos) throws IOException {
-        final int bi = (int) (pos / chunkSize);
+    public final long readZLong() throws IOException {
         try {
-            return buffers[bi].getShort((int) (pos % chunkSize));
-        } catch (IndexOutOfBoundsException ioobe) {
-            // either it's a boundary, or read past EOF, fall back:
-            setPos(pos, bi);
-            return readShort();
+            if (curLimit - curPos < 10) {
+                return super.readZLong();
+            }
+            return BitUtil.zigZagDecode(readVLongInBuffer(true));
         } catch (NullPointerException npe) {
             throw new AlreadyClosedException("Already closed: " + this);
         }
     }
 
-    @Override
-    public int readInt(long pos) throws IOException {
-        final int bi = (int) (pos / chunkSize);
-        try {
-            return buffers[bi].getInt((int) (pos % chunkSize));
-        } catch (IndexOutOfBoundsException ioobe) {
-            // either it's a boundary, or read past EOF, fall back:
-            setPos(pos, bi);
-            return readInt();
-        } catch (NullPointerException npe) {
-            throw new AlreadyClosedException("Already closed: " + this);
+    /**
+     * Decodes a vLong from {@link #curBuf}, which must have 9 bytes remaining, or 10 to allow negative values.
+     */
+    private long readVLongInBuffer(boolean allowNegative) throws IOException {
+        final ByteBuffer buf = curBuf;
+        int pos = curPos;
+        byte b = buf.get(pos++);
+        long i = b & 0x7FL;
+        for (int shift = 7; b < 0 && shift <= 56; shift += 7) {
+            b = buf.get(pos++);
+            i |= (b & 0x7FL) << shift;
+        }
+        if (b < 0) {
+            if (!allowNegative) {
+                throw new IOException("Invalid vLong detected (negative values disallowed)");
+            }
+            b = buf.get(pos++);
+            if (b != 0 && b != 1) {
+                throw new IOException("Invalid vLong detected (more than 64 bits)");
+            }
+            i |= (b & 0x7FL) << 63;
         }
+        curPos = pos;
+        return i;
     }
 
     @Override
-    public long readLong(long pos) throws IOException {
-        final int bi = (int) (pos / chunkSize);
-        try {
-            return buffers[bi].getLong((int) (pos % chunkSize));
-        } catch (IndexOutOfBoundsException ioobe) {
-            // either it's a boundary, or read past EOF, fall back:
-            setPos(pos, bi);
-            return readLong();
-        } catch (NullPointerException npe) {
-            throw new AlreadyClosedException("Already closed: " + this);
-        }
+    public final String readString() throws IOException {
+        final int length = readVInt();
+        // decode straight from a heap chunk, without copying the bytes first
+        if (curBuf.hasArray() && curLimit - curPos >= length) {
+            final String s = new String(curBuf.array(), curBuf.arrayOffset() + curPos, length, StandardCharsets.UTF_8);
+            curPos += length;
+            return s;
+        }
+        final byte[] bytes = new byte[length];
+        readBytes(bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
     @Override
@@ -219,246 +283,351 @@ abstract class ByteBufferIndexInput extends IndexInput implements RandomAccessIn
 
     @Override
     public final ByteBufferIndexInput clone() {
-        final ByteBufferIndexInput clone = buildSlice((String) null, 0L, this.length);
         try {
-            clone.seek(getFilePointer());
+            // the current chunk is loaded, so this does not fetch anything
+            return buildSlice((String) null, 0L, this.length, getFilePointer());
         } catch (IOException ioe) {
             throw new AssertionError(ioe);
         }
-
-        return clone;
     }
 
     /**
      * Creates a slice of this index input, with the given description, offset, and length. The slice is seeked to the beginning.
      */
     @Override
-    public final ByteBufferIndexInput slice(String sliceDescription, long offset, long length) {
+    public final ByteBufferIndexInput slice(String sliceDescription, long offset, long length) throws IOException {
         if (offset < 0 || length < 0 || offset + length > this.length) {
             throw new IllegalArgumentException("slice() " + sliceDescription + " out of bounds: offset=" + offset + ",length=" + length + ",fileLength=" + this.length + ": " + this);
         }
 
-        return buildSlice(sliceDescription, offset, length);
+        return buildSlice(sliceDescription, offset, length, 0L);
     }
 
-    /**
-     * Builds the actual sliced IndexInput (may apply extra offset in subclasses).
-     **/
-    protected ByteBufferIndexInput buildSlice(String sliceDescription, long offset, long length) {
-        if (buffers == null) {
+    private ByteBufferIndexInput buildSlice(String sliceDescription, long offset, long length, long pos) throws IOException {
+        if (curBuf == null) {
             throw new AlreadyClosedException("Already closed: " + this);
         }
 
-        final ByteBuffer newBuffers[] = buildSlice(buffers, offset, length);
-        final int ofs = (int) (offset % chunkSize);
-
-        final ByteBufferIndexInput clone = newCloneInstance(getFullSliceDescription(sliceDescription), newBuffers, ofs, length);
+        final ByteBufferIndexInput clone = newSlice(getFullSliceDescription(sliceDescription), offset, length, pos);
         clone.isClone = true;
 
+        // register the new clone in our clone list to clean it up on closing:
+        if (clones != null) {
+            clone.clones = clones;
+            clones.put(clone, Boolean.TRUE);
+        }
+
         return clone;
     }
 
     /**
-     * Factory method that creates a suitable implementation of this class for the given ByteBuffers.
+     * Creates an input over the given range of this input, sharing its chunks, and positioned at {@code pos}
+     * of the range.
      */
-    @SuppressWarnings("resource")
-    protected ByteBufferIndexInput newCloneInstance(String newResourceDescription, ByteBuffer[] newBuffers, int offset, long length) {
-        if (newBuffers.length == 1) {
-            newBuffers[0].position(offset);
-            return new SingleBufferImpl(newResourceDescription, newBuffers[0].slice(), length, chunkSize);
-        } else {
-            return new MultiBufferImpl(newResourceDescription, newBuffers, offset, length, chunkSize);
-        }
-    }
+    protected abstract ByteBufferIndexInput newSlice(String resourceDescription, long offset, long length, long pos) throws IOException;
 
     /**
-     * Returns a sliced view from a set of already-existing buffers:
-     * the last buffer's limit() will be correct, but
-     * you must deal with offset separately (the first buffer will not be adjusted)
+     * Checks that {@code n} bytes can be read at the given position by a random access method.
      */
-    private ByteBuffer[] buildSlice(ByteBuffer[] buffers, long offset, long length) {
-        final long sliceEnd = offset + length;
-
-        final int startIndex = (int) (offset / chunkSize);
-        final int endIndex = (int) (sliceEnd / chunkSize);
-
-        // we always allocate one more slice, the last one may be a 0 byte one
-        final ByteBuffer slices[] = new ByteBuffer[endIndex - startIndex + 1];
-
-        for (int i = 0; i < slices.length; i++) {
-            slices[i] = buffers[startIndex + i].duplicate();
+    protected final void checkRead(long pos, int n) throws EOFException {
+        if (curBuf == null) {
+            throw new AlreadyClosedException("Already closed: " + this);
+        }
+        if (pos < 0 || pos > length - n) {
+            throw new EOFException("seek past EOF: " + this);
         }
-
-        // set the last buffer's limit for the sliced view.
-        slices[slices.length - 1].limit((int) (sliceEnd % chunkSize));
-
-        return slices;
     }
 
     @Override
     public final void close() throws IOException {
-        if (buffers == null) return;
+        if (curBuf == null) return;
         unsetBuffers();
+        if (isClone) return;
+
+        // for extra safety unset also all clones' buffers:
+        if (clones != null) {
+            for (Iterator<ByteBufferIndexInput> it = clones.keyIterator(); it.hasNext(); ) {
+                final ByteBufferIndexInput clone = it.next();
+                assert clone.isClone;
+                clone.unsetBuffers();
+            }
+            clones.clear();
+        }
     }
 
     /**
      * Called to remove all references to byte buffers, so we can throw AlreadyClosed on NPE.
      */
-    private void unsetBuffers() {
-        buffers = null;
+    protected void unsetBuffers() {
         curBuf = null;
-        curBufIndex = 0;
+        curView = null;
     }
 
     /**
      * Optimization of ByteBufferIndexInput for when there is only one buffer
      */
     static final class SingleBufferImpl extends ByteBufferIndexInput {
+        private final int offset; // start of this input in the buffer
 
-        SingleBufferImpl(String resourceDescription, ByteBuffer buffer, long length, int chunkSize) {
-            super(resourceDescription, new ByteBuffer[]{buffer}, length, chunkSize);
-            this.curBufIndex = 0;
-            this.curBuf = buffer;
-            buffer.position(0);
+        SingleBufferImpl(String resourceDescription, ByteBuffer buffer, int offset, int length) {
+            super(resourceDescription, length);
+            this.offset = offset;
+            setCurBuf(buffer, offset, offset + length);
         }
 
-        // TODO: investigate optimizing readByte() & Co?
+        @Override
+        protected void nextBuffer() throws IOException {
+            if (curBuf == null) {
+                throw new AlreadyClosedException("Already closed: " + this);
+            }
+            throw new EOFException("read past EOF: " + this);
+        }
 
         @Override
         public void seek(long pos) throws IOException {
-            try {
-                curBuf.position((int) pos);
-            } catch (IllegalArgumentException e) {
-                if (pos < 0) {
-                    throw new IllegalArgumentException("Seeking to negative position: " + this, e);
-                } else {
-                    throw new EOFException("seek past EOF: " + this);
-                }
-            } catch (NullPointerException npe) {
+            if (curBuf == null) {
                 throw new AlreadyClosedException("Already closed: " + this);
             }
+            if (pos < 0) {
+                throw new IllegalArgumentException("Seeking to negative position: " + this);
+            } else if (pos > length) {
+                throw new EOFException("seek past EOF: " + this);
+            }
+            curPos = offset + (int) pos;
         }
 
         @Override
         public long getFilePointer() {
-            try {
-                return curBuf.position();
-            } catch (NullPointerException npe) {
+            if (curBuf == null) {
                 throw new AlreadyClosedException("Already closed: " + this);
             }
+            return curPos - offset;
         }
 
         @Override
         public byte readByte(long pos) throws IOException {
-            try {
-                return curBuf.get((int) pos);
-            } catch (IllegalArgumentException e) {
-                if (pos < 0) {
-                    throw new IllegalArgumentException("Seeking to negative position: " + this, e);
-                } else {
-                    throw new EOFException("seek past EOF: " + this);
-                }
-            } catch (NullPointerException npe) {
-                throw new AlreadyClosedException("Already closed: " + this);
-            }
+            checkRead(pos, Byte.BYTES);
+            return curBuf.get(offset + (int) pos);
         }
 
         @Override
         public short readShort(long pos) throws IOException {
-            try {
-                return curBuf.getShort((int) pos);
-            } catch (IllegalArgumentException e) {
-                if (pos < 0) {
-                    throw new IllegalArgumentException("Seeking to negative position: " + this, e);
-                } else {
-                    throw new EOFException("seek past EOF: " + this);
-                }
-            } catch (NullPointerException npe) {
-                throw new AlreadyClosedException("Already closed: " + this);
-            }
+            checkRead(pos, Short.BYTES);
+            return curBuf.getShort(offset + (int) pos);
         }
 
         @Override
         public int readInt(long pos) throws IOException {
-            try {
-                return curBuf.getInt((int) pos);
-            } catch (IllegalArgumentException e) {
-                if (pos < 0) {
-                    throw new IllegalArgumentException("Seeking to negative position: " + this, e);
-                } else {
-                    throw new EOFException("seek past EOF: " + this);
-                }
-            } catch (NullPointerException npe) {
-                throw new AlreadyClosedException("Already closed: " + this);
-            }
+            checkRead(pos, Integer.BYTES);
+            return curBuf.getInt(offset + (int) pos);
         }
 
         @Override
         public long readLong(long pos) throws IOException {
-            try {
-                return curBuf.getLong((int) pos);
-            } catch (IllegalArgumentException e) {
-                if (pos < 0) {
-                    throw new IllegalArgumentException("Seeking to negative position: " + this, e);
-                } else {
-                    throw new EOFException("seek past EOF: " + this);
-                }
-            } catch (NullPointerException npe) {
-                throw new AlreadyClosedException("Already closed: " + this);
-            }
+            checkRead(pos, Long.BYTES);
+            return curBuf.getLong(offset + (int) pos);
+        }
+
+        @Override
+        protected ByteBufferIndexInput newSlice(String resourceDescription, long offset, long length, long pos) throws IOException {
+            final ByteBufferIndexInput slice = new SingleBufferImpl(resourceDescription, curBuf, this.offset + (int) offset, (int) length);
+            slice.seek(pos);
+            return slice;
         }
     }
 
     /**
-     * This class adds offset support to ByteBufferIndexInput, which is needed for slices.
+     * Input over a range of chunks, which are shared with its clones and slices.
      */
     static final class MultiBufferImpl extends ByteBufferIndexInput {
-        private final int offset;
-
-        MultiBufferImpl(String resourceDescription, ByteBuffer[] buffers, int offset, long length, int chunkSize) {
-            super(resourceDescription, buffers, length, chunkSize);
+        private final int chunkSize;
+        private final int chunkSizePower; // log2(chunkSize) when it is a power of two, or -1 to address by division
+        private final long chunkSizeMask;
+        private final long offset; // start of this input in the chunks
+        private final long end; // offset + length
+
+        // exactly one of both is set until closed
+        private ByteBuffer[] buffers;
+        private ChunkTable table;
+
+        private int curBufIndex = -1;
+
+        MultiBufferImpl(String resourceDescription, ByteBuffer[] buffers, ChunkTable table, long offset, long length, int chunkSize, long pos) throws IOException {
+            super(resourceDescription, length);
+            this.buffers = buffers;
+            this.table = table;
             this.offset = offset;
-            try {
-                seek(0L);
-            } catch (IOException ioe) {
-                throw new AssertionError(ioe);
+            this.end = offset + length;
+            this.chunkSize = chunkSize;
+            if (Integer.bitCount(chunkSize) == 1) {
+                this.chunkSizePower = Integer.numberOfTrailingZeros(chunkSize);
+                this.chunkSizeMask = chunkSize - 1L;
+            } else {
+                this.chunkSizePower = -1;
+                this.chunkSizeMask = -1L;
             }
+            assert pos >= 0 && pos <= length;
+            // only the chunk at pos is needed, a clone does not fetch the start of the range
+            setPosition(pos);
+        }
+
+        /**
+         * Returns the index of the chunk holding the given position of the file.
+         */
+        private int bufferIndex(long pos) {
+            return chunkSizePower >= 0 ? (int) (pos >> chunkSizePower) : (int) (pos / chunkSize);
+        }
+
+        /**
+         * Returns the offset of the given position of the file in its chunk.
+         */
+        private int bufferOffset(long pos) {
+            return chunkSizePower >= 0 ? (int) (pos & chunkSizeMask) : (int) (pos % chunkSize);
+        }
+
+        /**
+         * Returns the position in the file of the start of the given chunk.
+         */
+        private long bufferStart(int bi) {
+            return chunkSizePower >= 0 ? (long) bi << chunkSizePower : (long) bi * chunkSize;
+        }
+
+        /**
+         * Returns the shared buffer of the given chunk.
+         */
+        private ByteBuffer chunk(int bi) throws IOException {
+            return table != null ? table.chunk(bi) : buffers[bi];
+        }
+
+        /**
+         * Makes the given chunk the current one, limited to the end of this input.
+         */
+        private void setBuffer(int bi, int off) throws IOException {
+            final ByteBuffer b = chunk(bi);
+            setCurBuf(b, off, (int) Math.min(b.limit(), end - bufferStart(bi)));
+            curBufIndex = bi;
         }
 
         @Override
-        public void seek(long pos) throws IOException {
-            assert pos >= 0L;
-            super.seek(pos + offset);
+        protected void nextBuffer() throws IOException {
+            if (curBuf == null) {
+                throw new AlreadyClosedException("Already closed: " + this);
+            }
+            final int bi = curBufIndex + 1;
+            if (bufferStart(bi) >= end) {
+                throw new EOFException("read past EOF: " + this);
+            }
+            setBuffer(bi, 0);
         }
 
         @Override
         public long getFilePointer() {
-            return super.getFilePointer() - offset;
+            if (curBuf == null) {
+                throw new AlreadyClosedException("Already closed: " + this);
+            }
+            return bufferStart(curBufIndex) + curPos - offset;
+        }
+
+        @Override
+        public void seek(long pos) throws IOException {
+            if (curBuf == null) {
+                throw new AlreadyClosedException("Already closed: " + this);
+            }
+            if (pos < 0) {
+                throw new IllegalArgumentException("Seeking to negative position: " + this);
+            } else if (pos > length) {
+                throw new EOFException("seek past EOF: " + this);
+            }
+            setPosition(pos);
+        }
+
+        private void setPosition(long pos) throws IOException {
+            final long p = offset + pos;
+            int bi = bufferIndex(p);
+            int off = bufferOffset(p);
+            if (off == 0 && p == end && p > offset) {
+                // stay at the end of the previous chunk rather than fetch the next one
+                bi--;
+                off = chunkSize;
+            }
+            if (bi == curBufIndex) {
+                curPos = off;
+            } else {
+                setBuffer(bi, off);
+            }
+        }
+
+        /**
+         * Reads {@code n} bytes as a big-endian value starting at offset {@code off} of chunk {@code bi} and
+         * continuing in the following chunk. Used by random access methods for reads across boundaries, it
+         * does not change the position of this input.
+         */
+        private long readAcrossBoundary(int bi, int off, int n) throws IOException {
+            ByteBuffer b = chunk(bi);
+            long v = 0;
+            for (int i = 0; i < n; i++) {
+                if (off == chunkSize) {
+                    b = chunk(++bi);
+                    off = 0;
+                }
+                v = (v << 8) | (b.get(off++) & 0xFF);
+            }
+            return v;
         }
 
         @Override
         public byte readByte(long pos) throws IOException {
-            return super.readByte(pos + offset);
+            checkRead(pos, Byte.BYTES);
+            final long p = offset + pos;
+            return chunk(bufferIndex(p)).get(bufferOffset(p));
         }
 
         @Override
         public short readShort(long pos) throws IOException {
-            return super.readShort(pos + offset);
+            checkRead(pos, Short.BYTES);
+            final long p = offset + pos;
+            final int bi = bufferIndex(p);
+            final int off = bufferOffset(p);
+            if (off <= chunkSize - Short.BYTES) {
+                return chunk(bi).getShort(off);
+            }
+            return (short) readAcrossBoundary(bi, off, Short.BYTES);
         }
 
         @Override
         public int readInt(long pos) throws IOException {
-            return super.readInt(pos + offset);
+            checkRead(pos, Integer.BYTES);
+            final long p = offset + pos;
+            final int bi = bufferIndex(p);
+            final int off = bufferOffset(p);
+            if (off <= chunkSize - Integer.BYTES) {
+                return chunk(bi).getInt(off);
+            }
+            return (int) readAcrossBoundary(bi, off, Integer.BYTES);
         }
 
         @Override
         public long readLong(long pos) throws IOException {
-            return super.readLong(pos + offset);
+            checkRead(pos, Long.BYTES);
+            final long p = offset + pos;
+            final int bi = bufferIndex(p);
+            final int off = bufferOffset(p);
+            if (off <= chunkSize - Long.BYTES) {
+                return chunk(bi).getLong(off);
+            }
+            return readAcrossBoundary(bi, off, Long.BYTES);
+        }
+
+        @Override
+        protected ByteBufferIndexInput newSlice(String resourceDescription, long offset, long length, long pos) throws IOException {
+            return new MultiBufferImpl(resourceDescription, buffers, table, this.offset + offset, length, chunkSize, pos);
         }
 
         @Override
-        protected ByteBufferIndexInput buildSlice(String sliceDescription, long ofs, long length) {
-            return super.buildSlice(sliceDescription, this.offset + ofs, length);
+        protected void unsetBuffers() {
+            super.unsetBuffers();
+            buffers = null;
+            table = null;
         }
     }
 }
@@ -0,0 +1,115 @@
+package com.sftxy.lucene.store.mongodb;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Data of one fs.chunks document, with a reference count.
+ *
+ * <p>Each holder (the {@link MongodbChunkCache}, a {@link ChunkTable}) owns one reference, and releases it when
+ * it drops the chunk. Off-heap data is freed as soon as the last reference is released, instead of waiting for
+ * the garbage collector to find the buffer unreachable.</p>
+ *
+ * <p>A chunk created against a {@link MemoryBudget} gives its bytes back to it when the last reference is released.</p>
+ */
+final class Chunk {
+
+    static final Chunk EMPTY = new Chunk(ByteBuffer.allocate(0), null);
+
+    /** Frees a direct buffer, {@code null} if this JVM does not allow it. */
+    private static final MethodHandle CLEANER = cleaner();
+
+    final ByteBuffer buffer;
+    private final MemoryBudget budget;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    private Chunk(ByteBuffer buffer, MemoryBudget budget) {
+        this.buffer = buffer;
+        this.budget = budget;
+    }
+
+    /**
+     * Creates a chunk over the given data, copied off-heap if {@code direct}. The caller owns the only reference.
+     */
+    static Chunk of(byte[] data, boolean direct) {
+        return of(data, direct, null);
+    }
+
+    /**
+     * Creates a chunk whose {@code data.length} bytes were reserved from the given budget, if not {@code null}.
+     */
+    static Chunk of(byte[] data, boolean direct, MemoryBudget budget) {
+        if (!direct) {
+            return new Chunk(ByteBuffer.wrap(data), budget);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+        buffer.put(data).flip();
+        return new Chunk(buffer, budget);
+    }
+
+    /**
+     * Adds a reference, only valid while the caller holds another one.
+     */
+    Chunk retain() {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Drops a reference, and frees off-heap data when it was the last one.
+     */
+    void release() {
+        if (refs.decrementAndGet() != 0) {
+            return;
+        }
+        if (buffer.isDirect() && CLEANER != null) {
+            try {
+                CLEANER.invokeExact(buffer);
+            } catch (Throwable t) {
+                // leave it to the garbage collector
+            }
+        }
+        if (budget != null) {
+            budget.release(buffer.capacity());
+        }
+    }
+
+    int size() {
+        return buffer.capacity();
+    }
+
+    private static MethodHandle cleaner() {
+        return AccessController.doPrivileged((PrivilegedAction<MethodHandle>) () -> {
+            final MethodHandles.Lookup lookup = MethodHandles.lookup();
+            try {
+                // Java 9+
+                final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                return lookup.unreflect(invokeCleaner).bindTo(theUnsafe.get(null));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                // fall through
+            }
+            try {
+                // Java 8
+                final Class<?> directBufferClass = Class.forName("java.nio.DirectByteBuffer");
+                final Method cleanerMethod = directBufferClass.getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Method clean = cleanerMethod.getReturnType().getMethod("clean");
+                final MethodHandle getCleaner = lookup.unreflect(cleanerMethod).asType(MethodType.methodType(Object.class, ByteBuffer.class));
+                final MethodHandle doClean = lookup.unreflect(clean).asType(MethodType.methodType(void.class, Object.class));
+                return MethodHandles.filterReturnValue(getCleaner, doClean);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,58 @@
+package com.sftxy.lucene.store.mongodb;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.codecs.compressing.Compressor;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.bson.Document;
+import org.bson.types.Binary;
+
+/**
+ * Encoding of the data of fs.chunks documents.
+ *
+ * <p>A chunk is either stored as is, or LZ4 compressed with Lucene's {@link CompressionMode#FAST}, in which case
+ * its document has an {@code lz4} field holding the uncompressed length. Chunks without it are plain GridFS
+ * chunks, so files written before compression was enabled, or by other GridFS clients, stay readable.</p>
+ */
+final class ChunkCodec {
+
+    static final String LZ4 = "lz4";
+
+    private ChunkCodec() {}
+
+    /**
+     * Compresses the data of the given chunk document in place, unless it does not get smaller.
+     */
+    static void compress(Document doc, Compressor compressor) throws IOException {
+        final byte[] data = doc.get("data", Binary.class).getData();
+        // LZ4 worst case: incompressible data expands by 1 byte per 255 bytes, plus a few bytes
+        final byte[] compressed = new byte[data.length + data.length / 255 + 16];
+        final ByteArrayDataOutput out = new ByteArrayDataOutput(compressed);
+        compressor.compress(data, 0, data.length, out);
+        if (out.getPosition() < data.length) {
+            doc.put("data", new Binary(Arrays.copyOf(compressed, out.getPosition())));
+            doc.put(LZ4, data.length);
+        }
+    }
+
+    /**
+     * Returns the uncompressed data of the given chunk document.
+     */
+    static byte[] data(Document doc) throws IOException {
+        final byte[] data = doc.get("data", Binary.class).getData();
+        final Integer length = doc.getInteger(LZ4);
+        if (length == null) {
+            return data;
+        }
+        final BytesRef bytes = new BytesRef();
+        CompressionMode.FAST.newDecompressor().decompress(new ByteArrayDataInput(data), length, 0, length, bytes);
+        if (bytes.offset == 0 && bytes.bytes.length == length) {
+            return bytes.bytes;
+        }
+        return Arrays.copyOfRange(bytes.bytes, bytes.offset, bytes.offset + bytes.length);
+    }
+}
@@ -0,0 +1,229 @@
+package com.sftxy.lucene.store.mongodb;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Sorts.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
+
+/**
+ * Fetches fs.chunks documents for the {@link ChunkTable}s of one directory.
+ *
+ * <p>A large range of chunks is split in several {@code n} ranges queried in parallel: the calling thread
+ * queries the first range, the other ones run on the fetch executor. The number of ranges queried in parallel
+ * is capped per directory and per JVM; when no permit is left, the calling thread queries the whole range alone.</p>
+ *
+ * <p>Chunks are read with the chunk read preference. Chunks of a file written recently may not be replicated
+ * to a secondary yet, so those a query did not return are queried again from the primary.</p>
+ */
+final class ChunkLoader {
+
+    /** Minimum number of chunks per parallel range, smaller ranges are not worth an extra query. */
+    static final int MIN_RANGE_CHUNKS = 32;
+
+    static final Limit JVM_LIMIT = new Limit(Math.max(8, 2 * Runtime.getRuntime().availableProcessors()));
+
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "mongodb-chunk-fetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final MongoCollection<Document> chunks;
+    private final MongodbChunkCache cache;
+    private final MongodbMetrics metrics;
+
+    final Limit directoryLimit = new Limit(4);
+
+    volatile Executor executor = DEFAULT_EXECUTOR;
+
+    volatile boolean direct = false;
+
+    volatile ReadPreference readPreference = ReadPreference.primary();
+
+    volatile long budgetTimeoutNanos = TimeUnit.SECONDS.toNanos(30);
+
+    volatile boolean pagedOverBudget;
+
+    /** Tables of the inputs open on this directory. */
+    final Set<ChunkTable> tables = ConcurrentHashMap.newKeySet();
+
+    ChunkLoader(MongoCollection<Document> chunks, MongodbChunkCache cache) {
+        this(chunks, cache, new MongodbMetrics(cache));
+    }
+
+    ChunkLoader(MongoCollection<Document> chunks, MongodbChunkCache cache, MongodbMetrics metrics) {
+        this.chunks = chunks;
+        this.cache = cache;
+        this.metrics = metrics;
+    }
+
+    MongodbChunkCache cache() {
+        return cache;
+    }
+
+    MemoryBudget budget() {
+        return cache.budget;
+    }
+
+    /**
+     * Fetches chunks {@code first} to {@code last} (inclusive) of the given file, passing each document to the
+     * consumer, possibly from several threads at once.
+     */
+    void fetch(BsonValue filesId, int first, int last, Consumer<Document> consumer) throws IOException {
+        final int count = last - first + 1;
+        final int wanted = count / MIN_RANGE_CHUNKS - 1;
+        final int extra = wanted > 0 ? acquire(wanted) : 0;
+        if (extra == 0) {
+            query(filesId, first, last, consumer);
+            return;
+        }
+
+        final int ranges = extra + 1;
+        final List<CompletableFuture<Void>> futures = new ArrayList<>(extra);
+        try {
+            for (int i = 1; i < ranges; i++) {
+                final int from = first + (int) ((long) count * i / ranges);
+                final int to = first + (int) ((long) count * (i + 1) / ranges) - 1;
+                futures.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        query(filesId, from, to, consumer);
+                    } finally {
+                        release(1);
+                    }
+                }, executor));
+            }
+        } catch (RuntimeException e) {
+            // rejected by the executor: give back the permits of the ranges not submitted, and wait for the
+            // submitted ones, so that no chunk of this failed load reaches the consumer afterwards
+            release(extra - futures.size());
+            try {
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).join();
+            } catch (CompletionException suppressed) {
+                e.addSuppressed(suppressed.getCause());
+            }
+            throw e;
+        }
+
+        final CompletableFuture<Void> all = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+        try {
+            query(filesId, first, first + count / ranges - 1, consumer);
+        } catch (RuntimeException e) {
+            // do not leave other ranges passing documents to the consumer after returning
+            try {
+                all.join();
+            } catch (CompletionException suppressed) {
+                e.addSuppressed(suppressed.getCause());
+            }
+            throw e;
+        }
+        try {
+            all.join();
+        } catch (CompletionException e) {
+            throw new IOException("Failed to fetch chunks " + first + " to " + last + " of files_id=" + filesId, e.getCause());
+        }
+    }
+
+    private void query(BsonValue filesId, int from, int to, Consumer<Document> consumer) {
+        final Bson filter = from == to
+            ? and(eq("files_id", filesId), eq("n", from))
+            : and(eq("files_id", filesId), gte("n", from), lte("n", to));
+        final ReadPreference readPreference = this.readPreference;
+        if (readPreference.equals(ReadPreference.primary())) {
+            query(chunks.withReadPreference(readPreference), filter, consumer);
+            return;
+        }
+        final BitSet found = new BitSet(to - from + 1);
+        query(chunks.withReadPreference(readPreference), filter, doc -> {
+            found.set(doc.getInteger("n") - from);
+            consumer.accept(doc);
+        });
+        if (found.cardinality() < to - from + 1) {
+            final List<Integer> missing = new ArrayList<>();
+            for (int i = found.nextClearBit(0); i <= to - from; i = found.nextClearBit(i + 1)) {
+                missing.add(from + i);
+            }
+            query(chunks.withReadPreference(ReadPreference.primary()),
+                and(eq("files_id", filesId), in("n", missing)), consumer);
+        }
+    }
+
+    private void query(MongoCollection<Document> chunks, Bson filter, Consumer<Document> consumer) {
+        final long start = System.nanoTime();
+        int count = 0;
+        long bytes = 0;
+        for (Document doc : chunks.find(filter).sort(ascending("n"))) {
+            count++;
+            bytes += doc.get("data", Binary.class).length();
+            consumer.accept(doc);
+        }
+        metrics.chunkQuery(System.nanoTime() - start, count, bytes);
+    }
+
+    private int acquire(int wanted) {
+        final int dir = directoryLimit.tryAcquire(wanted);
+        if (dir == 0) {
+            return 0;
+        }
+        final int jvm = JVM_LIMIT.tryAcquire(dir);
+        directoryLimit.release(dir - jvm);
+        return jvm;
+    }
+
+    private void release(int permits) {
+        JVM_LIMIT.release(permits);
+        directoryLimit.release(permits);
+    }
+
+    /**
+     * Non blocking counting limit, whose maximum can be changed at any time.
+     */
+    static final class Limit {
+        private final AtomicInteger used = new AtomicInteger();
+        volatile int max;
+
+        Limit(int max) {
+            this.max = max;
+        }
+
+        /**
+         * Acquires up to {@code wanted} permits, and returns how many were acquired.
+         */
+        int tryAcquire(int wanted) {
+            while (true) {
+                final int current = used.get();
+                final int granted = Math.min(wanted, max - current);
+                if (granted <= 0) {
+                    return 0;
+                }
+                if (used.compareAndSet(current, current + granted)) {
+                    return granted;
+                }
+            }
+        }
+
+        void release(int permits) {
+            used.addAndGet(-permits);
+        }
+    }
+}
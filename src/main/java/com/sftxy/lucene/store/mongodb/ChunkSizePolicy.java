@@ -0,0 +1,78 @@
+package com.sftxy.lucene.store.mongodb;
+
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.store.IOContext;
+
+/**
+ * Picks the GridFS chunk size of each file written by {@link MongodbDirectory#createOutput}.
+ *
+ * <p>Readers use the chunk size recorded in each file's fs.files document, so the policy can be changed at
+ * any time, files written before keep being readable.</p>
+ *
+ * @see MongodbDirectory#setChunkSizePolicy(ChunkSizePolicy)
+ */
+public abstract class ChunkSizePolicy {
+
+    /**
+     * Largest allowed chunk size, leaving room in the 16 MB document limit for the other fields of a chunk.
+     */
+    public static final int MAX_CHUNK_SIZE = 8 << 20;
+
+    /**
+     * Sizes chunks by the expected file size, taken from the {@link IOContext}: 64 KB for small files and
+     * per-segment metadata, 256 KB by default, 1 MB for large flushed or merged segments.
+     */
+    public static final ChunkSizePolicy DEFAULT = new ChunkSizePolicy() {
+        @Override
+        public int chunkSize(String name, IOContext context) {
+            if (isMetadata(name)) {
+                return 64 << 10;
+            }
+            long estimatedBytes = -1;
+            if (context.context == IOContext.Context.MERGE && context.mergeInfo != null) {
+                estimatedBytes = context.mergeInfo.estimatedMergeBytes;
+            } else if (context.context == IOContext.Context.FLUSH && context.flushInfo != null) {
+                estimatedBytes = context.flushInfo.estimatedSegmentSize;
+            }
+            if (estimatedBytes < 0) {
+                return 256 << 10;
+            } else if (estimatedBytes < (1 << 20)) {
+                return 64 << 10;
+            } else if (estimatedBytes < (64 << 20)) {
+                return 256 << 10;
+            } else {
+                return 1 << 20;
+            }
+        }
+    };
+
+    /**
+     * Returns the chunk size for the given file, between {@code 1} and {@link #MAX_CHUNK_SIZE}. Inputs address
+     * chunks with shifts instead of divisions when it is a power of two.
+     */
+    public abstract int chunkSize(String name, IOContext context);
+
+    /**
+     * Returns {@code true} for commit points and small per-segment metadata files, which are always small.
+     */
+    protected static boolean isMetadata(String name) {
+        if (name.startsWith(IndexFileNames.SEGMENTS) || name.startsWith(IndexFileNames.PENDING_SEGMENTS)) {
+            return true;
+        }
+        final String extension = IndexFileNames.getExtension(name);
+        if (extension == null) {
+            return false;
+        }
+        switch (extension) {
+            case "si":
+            case "fnm":
+            case "liv":
+            case "cfe":
+            case "dvm":
+            case "nvm":
+                return true;
+            default:
+                return false;
+        }
+    }
+}
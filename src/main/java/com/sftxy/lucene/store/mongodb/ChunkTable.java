@@ -0,0 +1,254 @@
+package com.sftxy.lucene.store.mongodb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.lucene.util.Accountable;
+import org.bson.BsonValue;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+
+/**
+ * Table of the fs.chunks of one GridFS file, shared by an input and all of its clones and slices.
+ *
+ * <p>The table has one slot per chunk, plus a trailing 0 byte slot when the file length is a multiple
+ * of the chunk size, so that a position equal to the file length can always be addressed.</p>
+ *
+ * <p>Chunks are fetched either all at once ({@link #loadAll(boolean)}) or page by page on first access
+ * ({@link #chunk(int)}), a page being {@code pageChunks} consecutive chunks fetched with one query.
+ * Chunks are looked up in the {@link MongodbChunkCache} first, and fetched ones are offered to it,
+ * so inputs over the same file share one copy of its data. Missing chunks are fetched by the directory's
+ * {@link ChunkLoader}, in parallel for large ranges.</p>
+ *
+ * <p>The table holds a reference to each chunk it loaded until {@link #close() closed}. The bytes of fetched
+ * chunks are reserved from the cache's {@link MemoryBudget} first.</p>
+ */
+final class ChunkTable implements Closeable, Accountable {
+
+    private final GridFSFile file;
+    private final BsonValue id;
+    private final ChunkLoader loader;
+    private final MongodbChunkCache cache;
+    private final boolean direct;
+    private final int chunkSize;
+    private final int storedChunks;
+    private final int pageChunks;
+    private final AtomicReferenceArray<Chunk> loaded;
+    private final AtomicLong bytes = new AtomicLong();
+
+    ChunkTable(GridFSFile file, ChunkLoader loader, int pageChunks) {
+        if (pageChunks < 1) {
+            throw new IllegalArgumentException("pageChunks must be >= 1, got " + pageChunks);
+        }
+        this.file = file;
+        this.id = file.getId();
+        this.loader = loader;
+        this.cache = loader.cache();
+        this.direct = loader.direct;
+        this.chunkSize = file.getChunkSize();
+        this.storedChunks = (int) ((file.getLength() + chunkSize - 1) / chunkSize);
+        this.pageChunks = pageChunks;
+        this.loaded = new AtomicReferenceArray<>((int) (file.getLength() / chunkSize) + 1);
+        for (int n = storedChunks; n < loaded.length(); n++) {
+            loaded.set(n, Chunk.EMPTY);
+        }
+        loader.tables.add(this);
+    }
+
+    GridFSFile file() {
+        return file;
+    }
+
+    /**
+     * Number of slots in this table.
+     */
+    int size() {
+        return loaded.length();
+    }
+
+    long length() {
+        return file.getLength();
+    }
+
+    /**
+     * Whether this table holds off-heap chunks, which may be freed once it is closed.
+     */
+    boolean direct() {
+        return direct;
+    }
+
+    int chunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Returns the chunk at the given slot, fetching its page first if needed.
+     *
+     * <p>The returned buffer is shared, callers must {@link ByteBuffer#duplicate()} it before changing its position.</p>
+     */
+    ByteBuffer chunk(int n) throws IOException {
+        Chunk chunk = loaded.get(n);
+        if (chunk == null) {
+            final int from = n - n % pageChunks;
+            load(from, Math.min(from + pageChunks, storedChunks), true);
+            chunk = loaded.get(n);
+        }
+        return chunk.buffer;
+    }
+
+    /**
+     * Fetches every chunk not loaded yet, and returns a duplicate of each slot.
+     *
+     * @param wait whether to wait for the memory budget, instead of returning {@code null} when it is exhausted
+     */
+    ByteBuffer[] loadAll(boolean wait) throws IOException {
+        if (!load(0, storedChunks, wait)) {
+            return null;
+        }
+        final ByteBuffer[] buffers = new ByteBuffer[loaded.length()];
+        for (int n = 0; n < buffers.length; n++) {
+            buffers[n] = loaded.get(n).buffer.duplicate();
+        }
+        return buffers;
+    }
+
+    /**
+     * Loads chunks {@code from} to {@code to} (exclusive), and returns {@code false} if not waiting for the
+     * memory budget and it is exhausted.
+     */
+    private boolean load(int from, int to, boolean wait) throws IOException {
+        // only query the range of chunks neither loaded nor cached
+        final Chunk[] hits = new Chunk[to - from];
+        int first = -1;
+        int last = -1;
+        for (int n = from; n < to; n++) {
+            if (loaded.get(n) == null) {
+                hits[n - from] = cache.get(id, n, direct);
+                if (hits[n - from] == null) {
+                    if (first < 0) {
+                        first = n;
+                    }
+                    last = n;
+                }
+            }
+        }
+
+        long reserved = 0;
+        for (int n = first; first >= 0 && n <= last; n++) {
+            if (loaded.get(n) == null && hits[n - from] == null) {
+                reserved += Math.min(chunkSize, file.getLength() - (long) n * chunkSize);
+            }
+        }
+        final MemoryBudget budget = loader.budget();
+        if (!wait && reserved > 0 && !budget.tryReserve(reserved)) {
+            // do not keep cached chunks pinned for a load which does not happen
+            for (Chunk hit : hits) {
+                if (hit != null) {
+                    hit.release();
+                }
+            }
+            return false;
+        }
+        for (int n = from; n < to; n++) {
+            if (hits[n - from] != null) {
+                set(n, hits[n - from]);
+            }
+        }
+        if (first < 0) {
+            return true;
+        }
+        if (wait) {
+            budget.reserve(reserved, loader.budgetTimeoutNanos);
+        }
+
+        final int lo = first;
+        final int hi = last;
+        // bytes of the reservation now owned by fetched chunks
+        final AtomicLong charged = new AtomicLong();
+        try {
+            loader.fetch(id, lo, hi, doc -> {
+                final int n = doc.getInteger("n");
+                if (n >= lo && n <= hi && loaded.get(n) == null) {
+                    final byte[] data;
+                    try {
+                        data = ChunkCodec.data(doc);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    charged.addAndGet(data.length);
+                    set(n, cache.putIfAbsent(id, n, Chunk.of(data, direct, budget)));
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            budget.release(reserved - charged.get());
+        }
+        for (int n = from; n < to; n++) {
+            if (loaded.get(n) == null) {
+                throw new IOException("Missing chunk n=" + n + " of " + file);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stores a chunk the caller owns a reference to, unless a concurrent load stored it first.
+     */
+    private void set(int n, Chunk chunk) {
+        if (loaded.compareAndSet(n, null, chunk)) {
+            bytes.addAndGet(chunk.size());
+        } else {
+            chunk.release();
+        }
+    }
+
+    /**
+     * Adds the chunks this table holds to the given set, to count chunks shared by several tables once.
+     */
+    long addChunks(Set<Chunk> chunks) {
+        long added = 0;
+        for (int n = 0; n < storedChunks; n++) {
+            final Chunk chunk = loaded.get(n);
+            if (chunk != null && chunks.add(chunk)) {
+                added += chunk.size();
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Returns the bytes of the chunks this table holds, including chunks shared with the cache or other tables.
+     */
+    @Override
+    public long ramBytesUsed() {
+        return bytes.get();
+    }
+
+    @Override
+    public Collection<Accountable> getChildResources() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Releases all loaded chunks. Inputs over this table must not be used anymore.
+     */
+    @Override
+    public void close() {
+        loader.tables.remove(this);
+        for (int n = 0; n < storedChunks; n++) {
+            final Chunk chunk = loaded.getAndSet(n, null);
+            if (chunk != null) {
+                bytes.addAndGet(-chunk.size());
+                chunk.release();
+            }
+        }
+    }
+}
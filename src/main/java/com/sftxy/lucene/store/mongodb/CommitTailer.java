@@ -0,0 +1,260 @@
+package com.sftxy.lucene.store.mongodb;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.gridfs.model.GridFSFile;
+
+/**
+ * Follows the commits of a {@link MongodbDirectory} written by an IndexWriter elsewhere, for searcher nodes
+ * replicating an index near real time.
+ *
+ * <p>Each {@link #poll()} looks for a segments_N file of a higher generation than the current commit, among those
+ * uploaded since the last one found, or reads the manifest when it is enabled. The files of a new commit which the
+ * current commit does not have are {@link MongodbDirectory#warm(Collection) warmed}, then the
+ * {@link Listener} is notified, typically to reopen its reader with
+ * {@link DirectoryReader#openIfChanged(DirectoryReader, IndexCommit)}: only the new segments are then read, and
+ * the directory is not listed.</p>
+ *
+ * <p>Polls may skip commits, e.g. when several are made between two polls, and a commit may be superseded and
+ * deleted before it is read, in which case it is simply picked up on a later poll.</p>
+ */
+public final class CommitTailer implements Closeable {
+
+    /**
+     * Notified of the commits found by a {@link CommitTailer}.
+     */
+    public interface Listener {
+
+        /**
+         * Called with a new commit, once the given files, which the previous commit did not have, are warmed.
+         */
+        void onCommit(IndexCommit commit, Collection<String> newFiles) throws IOException;
+
+        /**
+         * Called when a scheduled poll fails. The next poll is still made.
+         */
+        default void onFailure(Exception e) {
+        }
+    }
+
+    /** uploadDate is set by the writer's clock, allow for it being behind. */
+    private static final long CLOCK_SKEW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final ScheduledThreadPoolExecutor POLLER = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "mongodb-commit-tailer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        POLLER.setRemoveOnCancelPolicy(true);
+    }
+
+    private final MongodbDirectory dir;
+    private final Listener listener;
+
+    private IndexCommit current;
+    private Set<String> currentFiles;
+    private Date since = new Date(0);
+    private ScheduledFuture<?> task;
+    private volatile boolean closed;
+
+    /**
+     * Creates a tailer following commits after the given one, e.g. {@link DirectoryReader#getIndexCommit()}, or
+     * from the latest commit if it is {@code null}.
+     */
+    public CommitTailer(MongodbDirectory dir, IndexCommit current, Listener listener) throws IOException {
+        if (current != null && current.getDirectory() != dir) {
+            throw new IllegalArgumentException("commit " + current.getSegmentsFileName() + " is not from " + dir);
+        }
+        this.dir = dir;
+        this.listener = listener;
+        this.current = current;
+        this.currentFiles = current == null ? Collections.emptySet() : new HashSet<>(current.getFileNames());
+    }
+
+    /**
+     * Returns the latest commit found, or {@code null} if none was found yet.
+     */
+    public synchronized IndexCommit getCurrentCommit() {
+        return current;
+    }
+
+    /**
+     * Looks for a new commit once, and returns it after notifying the listener, or returns {@code null} if there is
+     * none.
+     */
+    public synchronized IndexCommit poll() throws IOException {
+        if (closed) {
+            throw new AlreadyClosedException("this CommitTailer is closed");
+        }
+        final GridFSFile latest;
+        try {
+            latest = dir.latestCommit(since);
+        } catch (MongoException e) {
+            throw new IOException("Unable to look for commits of " + dir, e);
+        }
+        if (latest == null) {
+            return null;
+        }
+        final String name = latest.getFilename().substring(latest.getFilename().lastIndexOf('/') + 1);
+        final long generation = SegmentInfos.generationFromSegmentsFileName(name);
+        if (current != null && generation <= current.getGeneration()) {
+            return null;
+        }
+
+        final SegmentInfos infos;
+        try {
+            infos = SegmentInfos.readCommit(dir, name);
+        } catch (NoSuchFileException | FileNotFoundException e) {
+            // superseded and deleted meanwhile, or a file it refers to is
+            return null;
+        }
+        final Collection<String> files = infos.files(true);
+        final List<String> newFiles = new ArrayList<>();
+        for (String file : files) {
+            if (!currentFiles.contains(file)) {
+                newFiles.add(file);
+            }
+        }
+        try {
+            dir.warm(newFiles).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while warming " + name, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                final IOException cause = ((UncheckedIOException) e.getCause()).getCause();
+                if (cause instanceof NoSuchFileException) {
+                    // deleted by a newer commit meanwhile
+                    return null;
+                }
+                throw cause;
+            }
+            throw new IOException("Unable to warm " + name, e.getCause());
+        }
+
+        current = new TailedCommit(dir, name, infos, files);
+        currentFiles = new HashSet<>(files);
+        since = new Date(latest.getUploadDate().getTime() - CLOCK_SKEW_MILLIS);
+        listener.onCommit(current, Collections.unmodifiableList(newFiles));
+        return current;
+    }
+
+    /**
+     * Polls in the background with the given delay between polls, until closed.
+     */
+    public synchronized void start(long delay, TimeUnit unit) {
+        if (closed) {
+            throw new AlreadyClosedException("this CommitTailer is closed");
+        }
+        if (task != null) {
+            throw new IllegalStateException("already started");
+        }
+        task = POLLER.scheduleWithFixedDelay(() -> {
+            try {
+                poll();
+            } catch (AlreadyClosedException e) {
+                // closed meanwhile
+            } catch (IOException | RuntimeException e) {
+                listener.onFailure(e);
+            }
+        }, 0, delay, unit);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            if (task != null) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * A commit read by the tailer. It cannot be deleted, only the writer's deletion policy does.
+     */
+    private static final class TailedCommit extends IndexCommit {
+
+        private final Directory dir;
+        private final String segmentsFileName;
+        private final SegmentInfos infos;
+        private final Collection<String> files;
+
+        TailedCommit(Directory dir, String segmentsFileName, SegmentInfos infos, Collection<String> files) {
+            this.dir = dir;
+            this.segmentsFileName = segmentsFileName;
+            this.infos = infos;
+            this.files = Collections.unmodifiableCollection(files);
+        }
+
+        @Override
+        public String getSegmentsFileName() {
+            return segmentsFileName;
+        }
+
+        @Override
+        public Collection<String> getFileNames() {
+            return files;
+        }
+
+        @Override
+        public Directory getDirectory() {
+            return dir;
+        }
+
+        @Override
+        public void delete() {
+            throw new UnsupportedOperationException("This IndexCommit does not support deletions");
+        }
+
+        @Override
+        public boolean isDeleted() {
+            return false;
+        }
+
+        @Override
+        public int getSegmentCount() {
+            return infos.size();
+        }
+
+        @Override
+        public long getGeneration() {
+            return infos.getGeneration();
+        }
+
+        @Override
+        public Map<String, String> getUserData() {
+            return infos.getUserData();
+        }
+
+        @Override
+        public String toString() {
+            return "TailedCommit(" + segmentsFileName + ")";
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.sftxy.lucene.store.mongodb;
+
+import static com.mongodb.client.model.Filters.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.lucene.util.ThreadInterruptedException;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.gridfs.model.GridFSFile;
+
+/**
+ * Deletes the files of one {@link MongodbDirectory} in the background.
+ *
+ * <p>Files are queued once hidden from the {@link FileCatalog}, and deleted by a single task on the executor,
+ * up to {@code batchSize} files at once: one {@code deleteMany} with {@code $in} on fs.files _id, then one
+ * manifest update, then one {@code deleteMany} on fs.chunks files_id. At most {@code capacity} files are queued,
+ * queueing blocks beyond.</p>
+ *
+ * <p>A file is gone once its fs.files document is, chunks left behind are garbage that is never read again, as
+ * every file has its own id. A failed step is retried {@link #MAX_ATTEMPTS} times with a growing delay, all steps
+ * being idempotent, without running the steps before it again. If deleting the fs.files documents still fails, it
+ * is logged and the files are listed again, so that Lucene deletes them again when it finds them unreferenced.
+ * Once they are deleted, the files are never listed again: if removing them from the manifest fails, they stay
+ * hidden until the manifest is rebuilt, and if deleting their chunks fails, the chunks are left behind.</p>
+ */
+final class DeleteQueue {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeleteQueue.class);
+
+    static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 100;
+
+    private final MongoCollection<Document> files;
+    private final MongoCollection<Document> chunks;
+    private final FileCatalog catalog;
+    private final MongodbChunkCache cache;
+    private final MongodbMetrics metrics;
+    private final Executor executor;
+    private final BlockingQueue<GridFSFile> queue;
+    private final int batchSize;
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    DeleteQueue(MongoCollection<Document> files, MongoCollection<Document> chunks, FileCatalog catalog,
+                MongodbChunkCache cache, MongodbMetrics metrics, Executor executor, int capacity, int batchSize) {
+        this.files = files;
+        this.chunks = chunks;
+        this.catalog = catalog;
+        this.cache = cache;
+        this.metrics = metrics;
+        this.executor = executor;
+        this.queue = new LinkedBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Queues the given file, which must already be hidden from the catalog.
+     */
+    void add(GridFSFile file) {
+        try {
+            queue.put(file);
+        } catch (InterruptedException e) {
+            catalog.deleted(Collections.singleton(file));
+            throw new ThreadInterruptedException(e);
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                drain();
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            final List<GridFSFile> batch = new ArrayList<>(batchSize);
+            queue.drainTo(batch, batchSize);
+            if (batch.isEmpty()) {
+                draining.set(false);
+                synchronized (this) {
+                    notifyAll();
+                }
+                // a file queued after drainTo but before draining was reset is drained here
+                if (queue.isEmpty() || !draining.compareAndSet(false, true)) {
+                    return;
+                }
+            } else {
+                delete(batch);
+            }
+        }
+    }
+
+    private void delete(List<GridFSFile> batch) {
+        final List<BsonValue> ids = new ArrayList<>(batch.size());
+        for (GridFSFile file : batch) {
+            ids.add(file.getId());
+        }
+        // steps done so far: fs.files, then the manifest, then fs.chunks
+        int done = 0;
+        try {
+            for (int attempt = 1; ; attempt++) {
+                final long start = System.nanoTime();
+                try {
+                    if (done == 0) {
+                        files.deleteMany(in("_id", ids));
+                        done++;
+                    }
+                    if (done == 1) {
+                        catalog.removeFromManifest(batch);
+                        done++;
+                    }
+                    chunks.deleteMany(in("files_id", ids));
+                    done++;
+                    metrics.delete(System.nanoTime() - start, ids.size());
+                    break;
+                } catch (MongoException e) {
+                    if (attempt == MAX_ATTEMPTS) {
+                        failed(batch, done, e);
+                        break;
+                    }
+                }
+                Thread.sleep(RETRY_DELAY_MILLIS << (attempt - 1));
+            }
+        } catch (InterruptedException e) {
+            failed(batch, done, e);
+            Thread.currentThread().interrupt();
+        } finally {
+            for (BsonValue id : ids) {
+                cache.invalidate(id);
+            }
+            // files still in the manifest are kept hidden, they would be listed again otherwise
+            if (done != 1) {
+                catalog.deleted(batch);
+            }
+        }
+    }
+
+    private void failed(List<GridFSFile> batch, int done, Exception cause) {
+        metrics.deleteFailure(batch.size());
+        if (done == 0) {
+            LOGGER.warn("Unable to delete {} files, they are listed again: {}", batch.size(), batch, cause);
+        } else if (done == 1) {
+            LOGGER.warn("Unable to remove {} deleted files from the manifest, they are hidden until it is rebuilt: {}",
+                batch.size(), batch, cause);
+        } else {
+            LOGGER.warn("Unable to delete the chunks of {} deleted files, they are left behind: {}", batch.size(),
+                batch, cause);
+        }
+    }
+
+    /**
+     * Waits until all queued files are deleted, or their deletion failed.
+     */
+    void flush() {
+        schedule();
+        synchronized (this) {
+            while (draining.get() || !queue.isEmpty()) {
+                try {
+                    wait(100);
+                } catch (InterruptedException e) {
+                    throw new ThreadInterruptedException(e);
+                }
+                if (!draining.get()) {
+                    schedule();
+                }
+            }
+        }
+    }
+}
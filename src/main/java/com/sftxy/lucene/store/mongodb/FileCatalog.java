@@ -0,0 +1,255 @@
+package com.sftxy.lucene.store.mongodb;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.*;
+
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfos;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.gridfs.model.GridFSFile;
+
+/**
+ * Local catalog of the fs.files documents of one {@link MongodbDirectory} prefix, by unprefixed file name.
+ *
+ * <p>Files written, renamed and deleted through the directory update the catalog directly. Looking up a file
+ * unknown to the catalog, or listing all files, refreshes the whole catalog with one projected query, so files
+ * written by other processes are found too.</p>
+ *
+ * <p>When a {@link Manifest} is set, refreshing reads it instead of querying fs.files, and every change made
+ * through the directory is recorded in it.</p>
+ *
+ * <p>Files being deleted in the background are hidden from the time they are queued, see {@link DeleteQueue}.</p>
+ *
+ * <p>Refreshing reads with the metadata read preference. A file missing from a secondary may not be replicated
+ * there yet, so looking it up refreshes again from the primary before failing.</p>
+ */
+final class FileCatalog {
+
+    private static final Bson PROJECTION = include("filename", "length", "chunkSize", "uploadDate", "md5");
+
+    private final MongoCollection<BsonDocument> files;
+    private final String prefix;
+    private final Bson filter;
+    private final Map<String, GridFSFile> catalog = new ConcurrentHashMap<>();
+    private final Set<BsonValue> deleting = ConcurrentHashMap.newKeySet();
+    private final AtomicLong deletions = new AtomicLong();
+    private final MongodbMetrics metrics;
+
+    private volatile Manifest manifest;
+    volatile ReadPreference readPreference = ReadPreference.primary();
+
+    FileCatalog(MongoCollection<Document> files, String prefix, MongodbMetrics metrics) {
+        this.files = files.withDocumentClass(BsonDocument.class);
+        this.metrics = metrics;
+        this.prefix = prefix;
+        this.filter = regex("filename", "^" + escape(prefix + "/"));
+    }
+
+    /**
+     * Returns the given file, refreshing the catalog first if it is unknown.
+     *
+     * @throws NoSuchFileException if the file does not exist
+     */
+    GridFSFile get(String name) throws NoSuchFileException {
+        GridFSFile file = catalog.get(name);
+        if (file == null) {
+            final ReadPreference readPreference = this.readPreference;
+            refresh(readPreference);
+            file = catalog.get(name);
+            if (file == null && !readPreference.equals(ReadPreference.primary())) {
+                refresh(ReadPreference.primary());
+                file = catalog.get(name);
+            }
+            if (file == null) {
+                throw new NoSuchFileException(prefix + "/" + name);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Refreshes the catalog, and returns all files by name.
+     */
+    Map<String, GridFSFile> refresh() {
+        return refresh(readPreference);
+    }
+
+    private Map<String, GridFSFile> refresh(ReadPreference readPreference) {
+        final Manifest manifest = this.manifest;
+        Map<String, GridFSFile> found;
+        long deletions;
+        do {
+            deletions = this.deletions.get();
+            found = null;
+            if (manifest != null) {
+                final long start = System.nanoTime();
+                found = manifest.read(readPreference);
+                metrics.metadataQuery(System.nanoTime() - start);
+            }
+            if (found == null) {
+                found = query(readPreference);
+            } else if (!deleting.isEmpty()) {
+                found.values().removeIf(file -> deleting.contains(file.getId()));
+            }
+            // a file read before its deletion completed is no longer hidden, read again
+        } while (this.deletions.get() != deletions);
+        catalog.keySet().retainAll(found.keySet());
+        catalog.putAll(found);
+        return found;
+    }
+
+    /**
+     * Reads all files from fs.files on the primary, bypassing the manifest, except files being deleted.
+     */
+    Map<String, GridFSFile> query() {
+        return query(ReadPreference.primary());
+    }
+
+    private Map<String, GridFSFile> query(ReadPreference readPreference) {
+        while (true) {
+            final long deletions = this.deletions.get();
+            final long start = System.nanoTime();
+            final Map<String, GridFSFile> found = new HashMap<>();
+            for (BsonDocument doc : files.withReadPreference(readPreference).find(filter).projection(PROJECTION)) {
+                final GridFSFile file = toGridFSFile(doc);
+                if (!deleting.contains(file.getId())) {
+                    found.put(name(file), file);
+                }
+            }
+            metrics.metadataQuery(System.nanoTime() - start);
+            // a file read before its deletion completed is no longer hidden, read again
+            if (this.deletions.get() == deletions) {
+                return found;
+            }
+        }
+    }
+
+    /**
+     * Returns the segments_N file of the highest generation among those uploaded at or after the given date, or
+     * {@code null} if there is none. Old commits are deleted by the writer, so this reads a few documents at most
+     * through the {@code {filename, uploadDate}} index.
+     */
+    GridFSFile latestCommit(Date since) {
+        final long start = System.nanoTime();
+        final Bson commits = and(regex("filename", "^" + escape(prefix + "/" + IndexFileNames.SEGMENTS + "_")),
+            gte("uploadDate", since));
+        GridFSFile latest = null;
+        long latestGeneration = -1;
+        for (BsonDocument doc : files.withReadPreference(readPreference).find(commits).projection(PROJECTION)) {
+            final GridFSFile file = toGridFSFile(doc);
+            final long generation = SegmentInfos.generationFromSegmentsFileName(name(file));
+            if (generation > latestGeneration && !deleting.contains(file.getId())) {
+                latest = file;
+                latestGeneration = generation;
+            }
+        }
+        metrics.metadataQuery(System.nanoTime() - start);
+        return latest;
+    }
+
+    Manifest getManifest() {
+        return manifest;
+    }
+
+    void setManifest(Manifest manifest) {
+        this.manifest = manifest;
+    }
+
+    void put(GridFSFile file) {
+        final String name = name(file);
+        if (manifest != null) {
+            manifest.add(name, file);
+        }
+        catalog.put(name, file);
+    }
+
+    /**
+     * Hides the given file until {@link #deleted} is called for it.
+     */
+    void delete(String name, GridFSFile file) {
+        deleting.add(file.getId());
+        catalog.remove(name);
+    }
+
+    /**
+     * Removes files being deleted from the manifest, once their fs.files documents are deleted.
+     */
+    void removeFromManifest(Collection<GridFSFile> files) {
+        final Manifest manifest = this.manifest;
+        if (manifest != null) {
+            final List<String> names = new ArrayList<>(files.size());
+            for (GridFSFile file : files) {
+                names.add(name(file));
+            }
+            manifest.remove(names);
+        }
+    }
+
+    /**
+     * Stops hiding the given files, once deleted, or after their deletion failed so that it can be retried.
+     */
+    void deleted(Collection<GridFSFile> files) {
+        deletions.incrementAndGet();
+        for (GridFSFile file : files) {
+            deleting.remove(file.getId());
+        }
+    }
+
+    void rename(String source, GridFSFile file, String dest) {
+        final GridFSFile renamed = new GridFSFile(file.getId(), prefix + "/" + dest, file.getLength(), file.getChunkSize(),
+            file.getUploadDate(), file.getMD5(), file.getMetadata());
+        if (manifest != null) {
+            manifest.rename(source, dest, renamed);
+        }
+        catalog.remove(source);
+        catalog.put(dest, renamed);
+    }
+
+    private String name(GridFSFile file) {
+        return file.getFilename().substring(prefix.length() + 1);
+    }
+
+    /**
+     * Files uploaded without a string md5, which newer drivers no longer compute, get an empty one since
+     * {@link GridFSFile} does not accept {@code null}.
+     */
+    static GridFSFile toGridFSFile(BsonDocument doc) {
+        return new GridFSFile(doc.get("_id"), doc.getString("filename").getValue(),
+            doc.getNumber("length").longValue(), doc.getNumber("chunkSize").intValue(),
+            new Date(doc.getDateTime("uploadDate").getValue()),
+            doc.isString("md5") ? doc.getString("md5").getValue() : "", null);
+    }
+
+    /**
+     * Escapes regular expression metacharacters, keeping the expression a plain prefix match which can use
+     * the filename index.
+     */
+    static String escape(String literal) {
+        final StringBuilder sb = new StringBuilder(literal.length() + 8);
+        for (int i = 0; i < literal.length(); i++) {
+            final char c = literal.charAt(i);
+            if ("\\^$.|?*+()[]{}".indexOf(c) >= 0) {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
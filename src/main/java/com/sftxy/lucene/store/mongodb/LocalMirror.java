@@ -0,0 +1,186 @@
+package com.sftxy.lucene.store.mongodb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NoLockFactory;
+import org.apache.lucene.util.IOUtils;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+
+/**
+ * Local disk copy of the index files of a {@link MongodbDirectory}, read through {@link MMapDirectory}.
+ *
+ * <p>A file is downloaded the first time it is opened, next to a {@code .gridfs} properties file recording
+ * the GridFS id, length, md5 and upload date it was downloaded from. A copy is only used while its recorded
+ * metadata matches fs.files, which stays the source of truth.</p>
+ *
+ * <p>Both files are written to a temporary file and forced to disk before being moved into place, and the
+ * directory is synced after, so that after a crash a file with its {@code .gridfs} properties is complete.</p>
+ */
+final class LocalMirror {
+
+    private static final String META_SUFFIX = ".gridfs";
+    private static final String TEMP_SUFFIX = ".download";
+
+    private final Path path;
+    private final ChunkLoader loader;
+    private final MMapDirectory mmapDir;
+
+    /** Metadata of the valid local copies, by file name. */
+    private final Map<String, Properties> copies = new ConcurrentHashMap<>();
+
+    LocalMirror(Path path, ChunkLoader loader) throws IOException {
+        this.path = Files.createDirectories(path);
+        this.loader = loader;
+        this.mmapDir = new MMapDirectory(path, NoLockFactory.INSTANCE);
+    }
+
+    /**
+     * Keeps the local copies matching the given fs.files documents (by unprefixed name), and removes all other files.
+     */
+    void validate(Map<String, GridFSFile> files) throws IOException {
+        copies.clear();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+            for (Path local : stream) {
+                final String name = local.getFileName().toString();
+                if (name.endsWith(META_SUFFIX) || name.endsWith(TEMP_SUFFIX)) {
+                    continue;
+                }
+                final GridFSFile file = files.get(name);
+                final Properties meta = readMeta(name);
+                if (file != null && meta != null && meta.equals(meta(file)) && Files.size(local) == file.getLength()) {
+                    copies.put(name, meta);
+                }
+            }
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+            for (Path local : stream) {
+                String name = local.getFileName().toString();
+                if (name.endsWith(META_SUFFIX)) {
+                    name = name.substring(0, name.length() - META_SUFFIX.length());
+                }
+                if (!copies.containsKey(name)) {
+                    Files.deleteIfExists(local);
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens the local copy of the given file, downloading it first if there is no valid copy.
+     */
+    IndexInput openInput(String name, GridFSFile file, IOContext context) throws IOException {
+        final Properties meta = meta(file);
+        if (!meta.equals(copies.get(name))) {
+            download(name, file, meta);
+        }
+        return mmapDir.openInput(name, context);
+    }
+
+    void delete(String name) throws IOException {
+        copies.remove(name);
+        Files.deleteIfExists(path.resolve(name + META_SUFFIX));
+        Files.deleteIfExists(path.resolve(name));
+    }
+
+    void rename(String source, String dest) throws IOException {
+        final Properties meta = copies.remove(source);
+        if (meta == null) {
+            return;
+        }
+        try {
+            Files.move(path.resolve(source), path.resolve(dest), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(path.resolve(source + META_SUFFIX), path.resolve(dest + META_SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            copies.put(dest, meta);
+        } catch (NoSuchFileException e) {
+            delete(dest);
+        }
+    }
+
+    private void download(String name, GridFSFile file, Properties meta) throws IOException {
+        final Path temp = path.resolve(name + "." + UUID.randomUUID() + TEMP_SUFFIX);
+        boolean success = false;
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                final int chunkSize = file.getChunkSize();
+                final int storedChunks = (int) ((file.getLength() + chunkSize - 1) / chunkSize);
+                if (storedChunks > 0) {
+                    // ranges may be fetched in parallel, each chunk is written at its own position
+                    loader.fetch(file.getId(), 0, storedChunks - 1, doc -> {
+                        long pos = (long) doc.getInteger("n") * chunkSize;
+                        try {
+                            final ByteBuffer data = ByteBuffer.wrap(ChunkCodec.data(doc));
+                            while (data.hasRemaining()) {
+                                pos += channel.write(data, pos);
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                }
+                if (channel.size() != file.getLength()) {
+                    throw new IOException("Downloaded " + channel.size() + " bytes instead of " + file.getLength() + " for " + file);
+                }
+                // the properties file must never describe pages still in the page cache only
+                channel.force(true);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            Files.move(temp, path.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            writeMeta(name, meta);
+            IOUtils.fsync(path, true);
+            copies.put(name, meta);
+            success = true;
+        } finally {
+            if (!success) {
+                IOUtils.deleteFilesIgnoringExceptions(temp);
+            }
+        }
+    }
+
+    private static Properties meta(GridFSFile file) {
+        final Properties meta = new Properties();
+        meta.setProperty("id", String.valueOf(file.getId()));
+        meta.setProperty("length", String.valueOf(file.getLength()));
+        meta.setProperty("md5", String.valueOf(file.getMD5()));
+        meta.setProperty("uploadDate", String.valueOf(file.getUploadDate().getTime()));
+        return meta;
+    }
+
+    private Properties readMeta(String name) throws IOException {
+        final Properties meta = new Properties();
+        try (InputStream in = Files.newInputStream(path.resolve(name + META_SUFFIX))) {
+            meta.load(in);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return meta;
+    }
+
+    private void writeMeta(String name, Properties meta) throws IOException {
+        final Path temp = path.resolve(name + META_SUFFIX + "." + UUID.randomUUID() + TEMP_SUFFIX);
+        try (OutputStream out = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW)) {
+            meta.store(out, null);
+        }
+        IOUtils.fsync(temp, false);
+        Files.move(temp, path.resolve(name + META_SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
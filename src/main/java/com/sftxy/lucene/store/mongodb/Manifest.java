@@ -0,0 +1,153 @@
+package com.sftxy.lucene.store.mongodb;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Updates.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfos;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.model.UpdateOptions;
+
+/**
+ * Manifest document of one {@link MongodbDirectory} prefix, kept in the fs.manifests collection with the prefix as _id.
+ *
+ * <p>The manifest holds the fs.files metadata of every file of the prefix, and the generation of its latest
+ * segments_N file, so listing files and finding the current commit take a single _id lookup whatever the number of
+ * files in the bucket. Each change is one single-document update, so readers see it entirely or not at all.</p>
+ *
+ * <p>File names are keys of the {@code files} subdocument, with '.' replaced by U+FF0E since field names cannot contain dots.</p>
+ */
+final class Manifest {
+
+    private final MongoCollection<Document> manifests;
+    private final String prefix;
+
+    Manifest(MongoCollection<Document> manifests, String prefix) {
+        this.manifests = manifests;
+        this.prefix = prefix;
+    }
+
+    /**
+     * Returns all files by name from the primary, or {@code null} if there is no manifest for this prefix yet.
+     */
+    Map<String, GridFSFile> read() {
+        return read(ReadPreference.primary());
+    }
+
+    /**
+     * Returns all files by name, or {@code null} if there is no manifest for this prefix yet.
+     */
+    Map<String, GridFSFile> read(ReadPreference readPreference) {
+        final BsonDocument doc = manifests.withDocumentClass(BsonDocument.class).withReadPreference(readPreference)
+            .find(eq("_id", prefix)).first();
+        if (doc == null) {
+            return null;
+        }
+        final Map<String, GridFSFile> files = new HashMap<>();
+        final BsonDocument entries = doc.getDocument("files", new BsonDocument());
+        for (Map.Entry<String, BsonValue> entry : entries.entrySet()) {
+            final String name = unescape(entry.getKey());
+            final BsonDocument file = entry.getValue().asDocument().clone();
+            file.put("filename", new BsonString(prefix + "/" + name));
+            files.put(name, FileCatalog.toGridFSFile(file));
+        }
+        return files;
+    }
+
+    /**
+     * Returns the generation of the latest segments_N file, or {@code -1} if there is none.
+     */
+    long generation(ReadPreference readPreference) {
+        final Document doc = manifests.withReadPreference(readPreference).find(eq("_id", prefix)).projection(new Document("generation", 1)).first();
+        return doc == null || doc.get("generation") == null ? -1 : ((Number) doc.get("generation")).longValue();
+    }
+
+    void add(String name, GridFSFile file) {
+        final List<Bson> updates = new ArrayList<>(2);
+        updates.add(set("files." + escape(name), entry(file)));
+        addGeneration(updates, name);
+        manifests.updateOne(eq("_id", prefix), combine(updates), new UpdateOptions().upsert(true));
+    }
+
+    void remove(Collection<String> names) {
+        final List<Bson> updates = new ArrayList<>(names.size());
+        for (String name : names) {
+            updates.add(unset("files." + escape(name)));
+        }
+        manifests.updateOne(eq("_id", prefix), combine(updates));
+    }
+
+    void rename(String source, String dest, GridFSFile file) {
+        final List<Bson> updates = new ArrayList<>(3);
+        updates.add(unset("files." + escape(source)));
+        updates.add(set("files." + escape(dest), entry(file)));
+        addGeneration(updates, dest);
+        manifests.updateOne(eq("_id", prefix), combine(updates), new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * Replaces the manifest with the given files.
+     */
+    void rebuild(Map<String, GridFSFile> files) {
+        final Document entries = new Document();
+        long generation = -1;
+        for (Map.Entry<String, GridFSFile> entry : files.entrySet()) {
+            entries.append(escape(entry.getKey()), entry(entry.getValue()));
+            generation = Math.max(generation, generation(entry.getKey()));
+        }
+        final Document doc = new Document("_id", prefix).append("files", entries);
+        if (generation >= 0) {
+            doc.append("generation", generation);
+        }
+        manifests.replaceOne(eq("_id", prefix), doc, new UpdateOptions().upsert(true));
+    }
+
+    private static Document entry(GridFSFile file) {
+        final Document entry = new Document("_id", file.getId())
+            .append("length", file.getLength())
+            .append("chunkSize", file.getChunkSize())
+            .append("uploadDate", file.getUploadDate() == null ? new Date() : file.getUploadDate());
+        // files uploaded without md5 have an empty one, which is not stored
+        if (file.getMD5() != null && !file.getMD5().isEmpty()) {
+            entry.append("md5", file.getMD5());
+        }
+        return entry;
+    }
+
+    private static void addGeneration(List<Bson> updates, String name) {
+        final long generation = generation(name);
+        if (generation >= 0) {
+            updates.add(max("generation", generation));
+        }
+    }
+
+    private static long generation(String name) {
+        if (name.startsWith(IndexFileNames.SEGMENTS) && !name.equals(IndexFileNames.OLD_SEGMENTS_GEN)) {
+            return SegmentInfos.generationFromSegmentsFileName(name);
+        }
+        return -1;
+    }
+
+    private static String escape(String name) {
+        return name.replace('.', '\uFF0E');
+    }
+
+    private static String unescape(String key) {
+        return key.replace('\uFF0E', '.');
+    }
+}
@@ -0,0 +1,106 @@
+package com.sftxy.lucene.store.mongodb;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * Bound on the chunk data bytes alive in the JVM, whether cached or held by open inputs.
+ *
+ * <p>Bytes are reserved before chunks are fetched, and given back when the last reference to a chunk is released.
+ * When a reservation does not fit, cached chunks are evicted first; if that is not enough, the caller waits for
+ * inputs to be closed, up to a timeout.</p>
+ *
+ * <p>A reservation larger than the whole budget is granted when nothing else is reserved, so that a single
+ * page or file can always be read.</p>
+ */
+final class MemoryBudget {
+
+    private final MongodbChunkCache cache;
+
+    private long used;
+    private volatile long maxBytes = Long.MAX_VALUE;
+
+    MemoryBudget(MongodbChunkCache cache) {
+        this.cache = cache;
+    }
+
+    void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must be >= 0, got " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        final long over = getUsed() - maxBytes;
+        if (over > 0) {
+            cache.evict(over);
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * Reserves the given bytes, evicting cached chunks if needed, and returns whether it succeeded.
+     */
+    boolean tryReserve(long bytes) {
+        while (!tryReserveNoEvict(bytes)) {
+            // evicted chunks still held by inputs free nothing, keep evicting until enough is freed
+            if (cache.evict(getUsed() + bytes - maxBytes) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reserves the given bytes, evicting cached chunks and then waiting for other reservations to be released
+     * if needed.
+     *
+     * @throws IOException if the bytes could not be reserved within the timeout
+     */
+    void reserve(long bytes, long timeoutNanos) throws IOException {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        // evicting must not happen under this monitor: releasing a chunk takes it while holding a cache shard
+        while (!tryReserve(bytes)) {
+            synchronized (this) {
+                if (tryReserveNoEvict(bytes)) {
+                    return;
+                }
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new IOException("Unable to reserve " + bytes + " bytes of chunk data within "
+                        + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms: " + used + " of " + maxBytes + " bytes are in use");
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    throw new ThreadInterruptedException(e);
+                }
+            }
+        }
+    }
+
+    synchronized void release(long bytes) {
+        if (bytes != 0) {
+            used -= bytes;
+            notifyAll();
+        }
+    }
+
+    private synchronized boolean tryReserveNoEvict(long bytes) {
+        if (used > 0 && used + bytes > maxBytes) {
+            return false;
+        }
+        used += bytes;
+        return true;
+    }
+}
@@ -0,0 +1,165 @@
+package com.sftxy.lucene.store.mongodb;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Sorts.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Lock;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+
+/**
+ * Administration of the GridFS buckets holding {@link MongodbDirectory} prefixes: sharding their chunks and
+ * moving prefixes between buckets.
+ *
+ * @see BucketNaming
+ */
+public final class MongodbBuckets {
+
+    private static final int BATCH = 16;
+
+    private MongodbBuckets() {}
+
+    /**
+     * Shards the chunks collection of the given bucket, and enables sharding of its database if needed.
+     *
+     * <p>With {@code hashed}, the shard key is {@code {files_id: "hashed"}}: each file is on one shard, and the
+     * files of an index are spread over all shards by their id. Otherwise it is the GridFS index
+     * {@code {files_id: 1, n: 1}}, whose ranges the balancer also splits within large files. Directories writing to a
+     * range sharded bucket should use {@link MongodbDirectory#setRandomFileIds random file ids}. Chunk queries
+     * always select a single file, so they are routed to the shards holding it.</p>
+     *
+     * <p>The other collections of the bucket are small and should stay unsharded.</p>
+     *
+     * <p>A sync barrier only makes durable the writes to its own shard, so directories write files to a sharded
+     * bucket with their {@link MongodbDirectory#setSyncWriteConcern sync write concern}, which makes writes slower.
+     * Directories check this when they create their first output, so directories already writing to the bucket must
+     * be reopened.</p>
+     */
+    public static void shardChunks(MongoClient client, String database, String bucket, boolean hashed) {
+        final MongoDatabase db = client.getDatabase(database);
+        final MongoCollection<Document> chunks = db.getCollection(bucket + ".chunks");
+        createIndexes(db.getCollection(bucket + ".files"), chunks);
+        final Document key;
+        if (hashed) {
+            chunks.createIndex(Indexes.hashed("files_id"));
+            key = new Document("files_id", "hashed");
+        } else {
+            key = new Document("files_id", 1).append("n", 1);
+        }
+        final MongoDatabase admin = client.getDatabase("admin");
+        try {
+            admin.runCommand(new Document("enableSharding", database));
+        } catch (MongoCommandException e) {
+            // AlreadyInitialized
+            if (e.getErrorCode() != 23) {
+                throw e;
+            }
+        }
+        admin.runCommand(new Document("shardCollection", database + "." + bucket + ".chunks").append("key", key));
+    }
+
+    /**
+     * Moves all files of the given prefix from its bucket in {@code from} to its bucket in {@code to}, and returns
+     * the number of files moved.
+     *
+     * <p>The write lock of the prefix is held in both buckets meanwhile, so no {@link IndexWriter} may be open on
+     * it. Each file is copied chunks first, then its fs.files document, keeping its id. The manifest is rebuilt in
+     * the target bucket if the prefix had one. The source files are only deleted once all files are copied, and
+     * files already copied are skipped, so an interrupted migration can be run again. Readers must be reopened on
+     * the target bucket.</p>
+     */
+    @SuppressWarnings("try")
+    public static int migrate(MongoDatabase db, String prefix, BucketNaming from, BucketNaming to) throws IOException {
+        final String source = from.bucket(prefix);
+        final String target = to.bucket(prefix);
+        if (source.equals(target)) {
+            throw new IllegalArgumentException("Prefix " + prefix + " is already in bucket " + target);
+        }
+        final MongoCollection<Document> sourceFiles = db.getCollection(source + ".files");
+        final MongoCollection<Document> sourceChunks = db.getCollection(source + ".chunks");
+        final MongoCollection<Document> targetFiles = db.getCollection(target + ".files");
+        final MongoCollection<Document> targetChunks = db.getCollection(target + ".chunks");
+        final MongoCollection<Document> sourceManifests = db.getCollection(source + ".manifests");
+
+        try (MongodbDirectory sourceDir = new MongodbDirectory(db, prefix, from);
+             MongodbDirectory targetDir = new MongodbDirectory(db, prefix, to);
+             Lock sourceLock = sourceDir.obtainLock(IndexWriter.WRITE_LOCK_NAME);
+             Lock targetLock = targetDir.obtainLock(IndexWriter.WRITE_LOCK_NAME)) {
+            createIndexes(targetFiles, targetChunks);
+            final List<Object> ids = new ArrayList<>();
+            for (Document file : sourceFiles.find(regex("filename", "^" + FileCatalog.escape(prefix + "/")))) {
+                final Object id = file.get("_id");
+                ids.add(id);
+                if (targetFiles.find(eq("_id", id)).first() != null) {
+                    continue;
+                }
+                // chunks left by an interrupted migration
+                targetChunks.deleteMany(eq("files_id", id));
+                List<Document> batch = new ArrayList<>(BATCH);
+                for (Document chunk : sourceChunks.find(eq("files_id", id)).sort(ascending("n"))) {
+                    batch.add(chunk);
+                    if (batch.size() == BATCH) {
+                        targetChunks.insertMany(batch);
+                        batch = new ArrayList<>(BATCH);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    targetChunks.insertMany(batch);
+                }
+                targetFiles.insertOne(file);
+            }
+
+            if (sourceManifests.find(eq("_id", prefix)).first() != null) {
+                targetDir.rebuildManifest();
+            }
+            for (int i = 0; i < ids.size(); i += 64) {
+                final List<Object> part = ids.subList(i, Math.min(ids.size(), i + 64));
+                sourceFiles.deleteMany(in("_id", part));
+                sourceChunks.deleteMany(in("files_id", part));
+            }
+            sourceManifests.deleteOne(eq("_id", prefix));
+            db.getCollection(source + ".syncs").deleteOne(eq("_id", prefix));
+            return ids.size();
+        }
+    }
+
+    /**
+     * Returns whether the given collection is sharded, or {@code false} if this cannot be told, e.g. when it does
+     * not exist yet.
+     */
+    static boolean isSharded(MongoDatabase db, String collection) {
+        try {
+            return Boolean.TRUE.equals(db.runCommand(new Document("collStats", collection)).get("sharded"));
+        } catch (MongoException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates the GridFS indexes of a bucket, which chunk queries and file listings use.
+     */
+    static void createIndexes(MongoCollection<Document> files, MongoCollection<Document> chunks) {
+        chunks.createIndex(Indexes.ascending("files_id", "n"), new IndexOptions().unique(true));
+        files.createIndex(Indexes.ascending("filename", "uploadDate"));
+    }
+
+    static ObjectId randomObjectId() {
+        final byte[] bytes = new byte[12];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        return new ObjectId(bytes);
+    }
+}
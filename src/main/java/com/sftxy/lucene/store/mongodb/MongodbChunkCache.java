@@ -0,0 +1,342 @@
+package com.sftxy.lucene.store.mongodb;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bson.BsonValue;
+
+/**
+ * Process-wide cache of fs.chunks data, shared by all {@link MongodbDirectory} instances.
+ *
+ * <p>Entries are keyed by GridFS {@code files_id} and chunk {@code n}, and the cache is bounded by the
+ * total number of data bytes it holds. Lucene files never change once written, so entries only need to
+ * be invalidated when a file is deleted. Heap and off-heap copies of a chunk are distinct entries, so that
+ * inputs only get chunks of the kind their directory loads: off-heap chunks may be freed once released, and
+ * only inputs over off-heap chunks pay for tracking their clones.</p>
+ *
+ * <p>Eviction is segmented LRU: new chunks enter a probationary segment, and are promoted to a protected
+ * segment when hit again. Eviction takes the least recently used probationary chunk first, so a one-time
+ * scan (a merge, a cold open of a large file) cannot flush chunks which are read repeatedly.</p>
+ *
+ * <p>The cache is split in independently locked shards to keep concurrent search threads from contending.
+ * Inputs keep the chunks they already touched reachable until closed, the bound applies to the data kept
+ * for reuse by the cache itself. An evicted off-heap chunk is freed once no open input holds it anymore.</p>
+ *
+ * <p>The {@link #setMemoryBudget(long) memory budget} bounds all chunk data instead, cached or held by inputs:
+ * loads which do not fit evict cached chunks, then wait for inputs to be closed.</p>
+ *
+ * <p>The initial size of {@link #INSTANCE} is read from the {@value #MAX_BYTES_PROPERTY} system property,
+ * {@code 0} disabling the cache until {@link #setMaxBytes(long)} is called.</p>
+ */
+public final class MongodbChunkCache {
+
+    /** System property with the initial size in bytes of {@link #INSTANCE}, 256 MB if not set. */
+    public static final String MAX_BYTES_PROPERTY = "lucene.mongodb.chunkCache.maxBytes";
+
+    public static final MongodbChunkCache INSTANCE =
+        new MongodbChunkCache(Long.getLong(MAX_BYTES_PROPERTY, 256L << 20));
+
+    private static final int SHARDS = 16;
+
+    /** Share of a shard's bytes reserved for the protected segment. */
+    private static final double PROTECTED_RATIO = 0.8;
+
+    private final Shard[] shards = new Shard[SHARDS];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    final MemoryBudget budget = new MemoryBudget(this);
+
+    private volatile long maxBytes;
+
+    MongodbChunkCache(long maxBytes) {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+        setMaxBytes(maxBytes);
+    }
+
+    /**
+     * Sets the maximum number of chunk data bytes kept by the cache, {@code 0} disables caching.
+     *
+     * <p>Default is 256 MB, or the {@value #MAX_BYTES_PROPERTY} system property. Shrinking the cache evicts chunks
+     * as needed.</p>
+     */
+    public void setMaxBytes(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must be >= 0, got " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.evict(maxBytes / SHARDS);
+            }
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Sets the maximum number of chunk data bytes alive in this JVM, whether cached or held by open inputs.
+     *
+     * <p>Default is unbounded. Loading chunks beyond the budget first evicts cached chunks, then either waits for
+     * inputs to be closed or, when opening a non paged input, opens it paged instead, see
+     * {@link MongodbDirectory#setMemoryBudgetTimeout} and {@link MongodbDirectory#setPagedOverBudget}.</p>
+     */
+    public void setMemoryBudget(long maxBytes) {
+        budget.setMaxBytes(maxBytes);
+    }
+
+    public long getMemoryBudget() {
+        return budget.getMaxBytes();
+    }
+
+    /**
+     * Returns the number of chunk data bytes currently alive, cached or held by open inputs.
+     */
+    public long getMemoryBytes() {
+        return budget.getUsed();
+    }
+
+    /**
+     * Returns the cached heap or off-heap ({@code direct}) copy of a chunk with a new reference owned by the caller,
+     * or {@code null} if absent.
+     */
+    Chunk get(BsonValue filesId, int n, boolean direct) {
+        final Key key = new Key(filesId, n, direct);
+        final Shard shard = shard(key);
+        Chunk chunk;
+        synchronized (shard) {
+            chunk = shard.get(key);
+            if (chunk != null) {
+                chunk.retain();
+            }
+        }
+        if (chunk == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return chunk;
+    }
+
+    /**
+     * Caches a chunk the caller owns a reference to, and returns the cached copy with a reference owned by the
+     * caller: the given chunk, or the one cached before by a concurrent load, in which case the given one is released.
+     */
+    Chunk putIfAbsent(BsonValue filesId, int n, Chunk chunk) {
+        final long shardMaxBytes = maxBytes / SHARDS;
+        if (chunk.size() > shardMaxBytes * (1 - PROTECTED_RATIO)) {
+            return chunk;
+        }
+        final Key key = new Key(filesId, n, chunk.buffer.isDirect());
+        final Shard shard = shard(key);
+        synchronized (shard) {
+            final Chunk existing = shard.putIfAbsent(key, chunk);
+            if (existing != null) {
+                existing.retain();
+                chunk.release();
+                return existing;
+            }
+            chunk.retain();
+            shard.evict(shardMaxBytes);
+        }
+        return chunk;
+    }
+
+    /**
+     * Evicts least recently used chunks until about {@code bytes} bytes were dropped or the cache is empty,
+     * and returns the number of bytes dropped.
+     */
+    long evict(long bytes) {
+        long evicted = 0;
+        for (int i = 0; i < SHARDS && evicted < bytes; i++) {
+            final Shard shard = shards[i];
+            synchronized (shard) {
+                final long before = shard.probationBytes + shard.protectedBytes;
+                shard.evict(Math.max(0, before - (bytes - evicted)));
+                evicted += before - shard.probationBytes - shard.protectedBytes;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Drops all chunks of the given file.
+     */
+    void invalidate(BsonValue filesId) {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.invalidate(filesId);
+            }
+        }
+    }
+
+    /**
+     * Drops all chunks.
+     */
+    public void clear() {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.invalidate(null);
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the number of chunk data bytes currently cached.
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                bytes += shard.probationBytes + shard.protectedBytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of chunks currently cached.
+     */
+    public int getChunkCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                count += shard.probation.size() + shard.protect.size();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "MongodbChunkCache(maxBytes=" + maxBytes + ",bytes=" + getBytes() + ",chunks=" + getChunkCount()
+            + ",hits=" + getHitCount() + ",misses=" + getMissCount() + ",evictions=" + getEvictionCount() + ")";
+    }
+
+    private Shard shard(Key key) {
+        return shards[(key.hashCode() & 0x7fffffff) % SHARDS];
+    }
+
+    private static final class Key {
+        private final BsonValue filesId;
+        private final int n;
+        private final boolean direct;
+
+        Key(BsonValue filesId, int n, boolean direct) {
+            this.filesId = filesId;
+            this.n = n;
+            this.direct = direct;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return n == other.n && direct == other.direct && filesId.equals(other.filesId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 2 * (31 * filesId.hashCode() + n) + (direct ? 1 : 0);
+        }
+    }
+
+    /**
+     * One segmented LRU, guarded by its own monitor. Both maps iterate from least to most recently used.
+     */
+    private final class Shard {
+        private final LinkedHashMap<Key, Chunk> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<Key, Chunk> protect = new LinkedHashMap<>(16, 0.75f, true);
+        private long probationBytes;
+        private long protectedBytes;
+
+        Chunk get(Key key) {
+            Chunk chunk = protect.get(key);
+            if (chunk == null) {
+                chunk = probation.remove(key);
+                if (chunk != null) {
+                    // second hit: promote, demoting protected chunks back to probation if it overflows
+                    probationBytes -= chunk.size();
+                    protect.put(key, chunk);
+                    protectedBytes += chunk.size();
+                    demote((long) (maxBytes / SHARDS * PROTECTED_RATIO));
+                }
+            }
+            return chunk;
+        }
+
+        Chunk putIfAbsent(Key key, Chunk chunk) {
+            Chunk existing = protect.get(key);
+            if (existing == null) {
+                existing = probation.putIfAbsent(key, chunk);
+                if (existing == null) {
+                    probationBytes += chunk.size();
+                }
+            }
+            return existing;
+        }
+
+        void evict(long shardMaxBytes) {
+            demote((long) (shardMaxBytes * PROTECTED_RATIO));
+            final Iterator<Chunk> it = probation.values().iterator();
+            while (probationBytes + protectedBytes > shardMaxBytes && it.hasNext()) {
+                final Chunk chunk = it.next();
+                it.remove();
+                probationBytes -= chunk.size();
+                chunk.release();
+                evictions.increment();
+            }
+        }
+
+        private void demote(long protectedMaxBytes) {
+            final Iterator<Map.Entry<Key, Chunk>> it = protect.entrySet().iterator();
+            while (protectedBytes > protectedMaxBytes && it.hasNext()) {
+                final Map.Entry<Key, Chunk> entry = it.next();
+                it.remove();
+                protectedBytes -= entry.getValue().size();
+                probation.put(entry.getKey(), entry.getValue());
+                probationBytes += entry.getValue().size();
+            }
+        }
+
+        void invalidate(BsonValue filesId) {
+            probationBytes -= invalidate(probation, filesId);
+            protectedBytes -= invalidate(protect, filesId);
+        }
+
+        private long invalidate(Map<Key, Chunk> map, BsonValue filesId) {
+            long bytes = 0;
+            final Iterator<Map.Entry<Key, Chunk>> it = map.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<Key, Chunk> entry = it.next();
+                if (filesId == null || filesId.equals(entry.getKey().filesId)) {
+                    bytes += entry.getValue().size();
+                    it.remove();
+                    entry.getValue().release();
+                }
+            }
+            return bytes;
+        }
+    }
+}
@@ -1,127 +1,917 @@
 package com.sftxy.lucene.store.mongodb;
 
 import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Updates.*;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.store.BaseDirectory;
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
-import org.apache.lucene.store.OutputStreamIndexOutput;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.Accountables;
 import org.bson.Document;
+import org.bson.types.ObjectId;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.gridfs.GridFSBucket;
 import com.mongodb.client.gridfs.GridFSBuckets;
 import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
 import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
 
 /**
  * Mongodb based Lucene index directory.
  *
  * <p>This implementation use Mongodb GridFS to store index files.</p>
  * <p>About Mongodb GridFS see <a href="https://docs.mongodb.com/manual/core/gridfs/">GridFS</a></p>
+ * <p>Files are stored in the "fs" bucket by default, or in the bucket picked by a {@link BucketNaming}.</p>
  *
  * @see MongodbLockFactory
  */
-public class MongodbDirectory extends BaseDirectory {
+public class MongodbDirectory extends BaseDirectory implements Accountable {
+
+    private static final String PROCESS = ManagementFactory.getRuntimeMXBean().getName();
+
+    private static final ExecutorService DEFAULT_WRITE_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "mongodb-chunk-write");
+        thread.setDaemon(true);
+        return thread;
+    });
 
+    private static final ExecutorService DEFAULT_DELETE_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "mongodb-delete");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final ExecutorService DEFAULT_WARM_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "mongodb-warm");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final MongoDatabase db;
     private final MongoCollection<Document> locks;
+    private final MongoCollection<Document> files;
     private final MongoCollection<Document> chunks;
+    private final MongoCollection<Document> manifests;
     private final GridFSBucket fsBucket;
     private final String prefix;
+    private final String bucket;
+    private final MongodbChunkCache cache = MongodbChunkCache.INSTANCE;
+    private final ChunkLoader loader;
+    private final FileCatalog catalog;
+    private final MongodbMetrics metrics = new MongodbMetrics(cache);
+    private final SyncBarrier barrier;
+    private final Map<String, Long> unsynced = new ConcurrentHashMap<>();
+    private final DeleteQueue deletes;
+    private ObjectName mbeanName;
+
+    private volatile LocalMirror mirror;
+    private volatile boolean paged = false;
+    private volatile int pageChunks = 1;
+    private volatile ChunkSizePolicy chunkSizePolicy = ChunkSizePolicy.DEFAULT;
+    private volatile int writeBatchChunks = 16;
+    private volatile int maxWriteBatchesInFlight = 4;
+    private volatile Executor writeExecutor = DEFAULT_WRITE_EXECUTOR;
+    private volatile WriteConcern writeConcern = WriteConcern.W1;
+    private volatile Set<String> compressedExtensions = Collections.emptySet();
+    private volatile int warmParallelism = 8;
+    private volatile long lockLeaseMillis = TimeUnit.SECONDS.toMillis(30);
+    private volatile boolean lockIndexCreated;
+    private volatile boolean indexesCreated;
+    private volatile boolean chunksSharded;
+    private volatile boolean randomFileIds;
+    private volatile Executor warmExecutor = DEFAULT_WARM_EXECUTOR;
 
     public MongodbDirectory(MongoDatabase db, String prefix) {
+        this(db, prefix, BucketNaming.SHARED);
+    }
+
+    /**
+     * Creates a directory over the files of the given prefix, in the bucket given by the naming.
+     */
+    public MongodbDirectory(MongoDatabase db, String prefix, BucketNaming naming) {
         super(MongodbLockFactory.INSTANCE);
-        this.locks = db.getCollection("fs.locks");
-        this.chunks = db.getCollection("fs.chunks");
-        this.fsBucket = GridFSBuckets.create(db);
+        this.bucket = naming.bucket(prefix);
+        this.db = db;
+        this.locks = db.getCollection(bucket + ".locks");
+        this.files = db.getCollection(bucket + ".files");
+        this.chunks = db.getCollection(bucket + ".chunks");
+        this.manifests = db.getCollection(bucket + ".manifests");
+        this.fsBucket = GridFSBuckets.create(db, bucket);
         this.prefix = prefix;
+        this.loader = new ChunkLoader(chunks, cache, metrics);
+        this.catalog = new FileCatalog(files, prefix, metrics);
+        this.barrier = new SyncBarrier(db.getCollection(bucket + ".syncs"), prefix, metrics);
+        this.deletes = new DeleteQueue(files, chunks, catalog, cache, metrics, DEFAULT_DELETE_EXECUTOR, 1024, 64);
+    }
+
+    /**
+     * Returns the GridFS bucket holding the files of this directory.
+     *
+     * @see BucketNaming
+     */
+    public String getBucketName() {
+        return bucket;
+    }
+
+    /**
+     * Sets whether new files get random ObjectIds instead of increasing ones. Default is {@code false}.
+     *
+     * <p>Needed when the chunks collection is sharded by ranges of {@code {files_id: 1, n: 1}}: increasing ids
+     * would write all new files to the last range, and keep the files of an index on the same shard. Hashed
+     * sharding of {@code files_id} spreads files without it, see {@link MongodbBuckets#shardChunks}.</p>
+     */
+    public void setRandomFileIds(boolean randomFileIds) {
+        this.randomFileIds = randomFileIds;
+    }
+
+    public boolean isRandomFileIds() {
+        return randomFileIds;
+    }
+
+    /**
+     * Sets the read preference of fs.files and manifest queries, which list files and find the latest commit.
+     * Default is {@link ReadPreference#primary()}.
+     *
+     * <p>A file not found with another read preference is looked up again on the primary, since it may not be
+     * replicated yet. Listing files and finding the latest commit have no such fallback, so writers, and readers
+     * which must see the latest commit at once, should keep the primary.</p>
+     */
+    public void setMetadataReadPreference(ReadPreference readPreference) {
+        if (readPreference == null) {
+            throw new NullPointerException("readPreference");
+        }
+        catalog.readPreference = readPreference;
+    }
+
+    public ReadPreference getMetadataReadPreference() {
+        return catalog.readPreference;
+    }
+
+    /**
+     * Sets the read preference of fs.chunks queries, e.g. {@link ReadPreference#secondaryPreferred()} to spread
+     * the loads of searchers over the replica set. Default is {@link ReadPreference#primary()}.
+     *
+     * <p>Files never change once their fs.files document exists, so any member having replicated their chunks
+     * returns them as written. Chunks missing on the member queried are fetched again from the primary.</p>
+     */
+    public void setChunkReadPreference(ReadPreference readPreference) {
+        if (readPreference == null) {
+            throw new NullPointerException("readPreference");
+        }
+        loader.readPreference = readPreference;
+    }
+
+    public ReadPreference getChunkReadPreference() {
+        return loader.readPreference;
+    }
+
+    /**
+     * Sets whether {@link #openInput} fetches chunks on first access instead of all upfront.
+     *
+     * <p>Paged inputs open in constant time, and only hold the chunks actually read.
+     * Default is {@code false}. Only affects inputs opened afterwards.</p>
+     *
+     * <p>Chunks are then read while the input is in use, so a file deleted meanwhile fails the input with
+     * "Missing chunk". Unlike a file system, MongoDB does not keep deleted files open, and a writer in another
+     * process, e.g. for searchers following it, deletes the files of superseded commits right away. Paged readers
+     * in other processes therefore need a deletion policy on the writer keeping the commits they still use, such
+     * as a time based one, or a {@link org.apache.lucene.index.SnapshotDeletionPolicy} holding the commits until
+     * their readers are closed.</p>
+     */
+    public void setPaged(boolean paged) {
+        this.paged = paged;
+    }
+
+    /**
+     * Returns {@code true} if inputs fetch chunks on first access.
+     *
+     * @see #setPaged(boolean)
+     */
+    public boolean isPaged() {
+        return paged;
+    }
+
+    /**
+     * Sets the number of consecutive chunks fetched by one query in paged mode.
+     *
+     * <p>{@code 1} (the default) fetches each chunk by a point lookup on {@code {files_id, n}},
+     * larger values read ahead with a range query on {@code n}.</p>
+     */
+    public void setPageChunks(int pageChunks) {
+        if (pageChunks < 1) {
+            throw new IllegalArgumentException("pageChunks must be >= 1, got " + pageChunks);
+        }
+        this.pageChunks = pageChunks;
+    }
+
+    /**
+     * Returns the number of consecutive chunks fetched by one query in paged mode.
+     *
+     * @see #setPageChunks(int)
+     */
+    public int getPageChunks() {
+        return pageChunks;
+    }
+
+    /**
+     * Sets whether loaded chunk data is copied to off-heap direct buffers instead of kept in heap byte arrays.
+     *
+     * <p>Off-heap data stays out of the garbage collector's old generation, and is freed as soon as it is
+     * neither cached nor held by an open input. Default is {@code false}. Only affects inputs opened afterwards,
+     * which share cached chunks with inputs of the same kind only.</p>
+     */
+    public void setDirectBuffers(boolean direct) {
+        loader.direct = direct;
+    }
+
+    public boolean isDirectBuffers() {
+        return loader.direct;
+    }
+
+    /**
+     * Sets the maximum number of additional {@code n} range queries this directory runs in parallel
+     * to fetch large files. {@code 0} fetches each file with a single sorted query. Default is {@code 4}.
+     *
+     * @see #setMaxJvmFetchParallelism(int)
+     */
+    public void setFetchParallelism(int parallelism) {
+        if (parallelism < 0) {
+            throw new IllegalArgumentException("parallelism must be >= 0, got " + parallelism);
+        }
+        loader.directoryLimit.max = parallelism;
+    }
+
+    public int getFetchParallelism() {
+        return loader.directoryLimit.max;
+    }
+
+    /**
+     * Sets the maximum number of additional {@code n} range queries run in parallel by all directories of this JVM.
+     * Default is twice the number of processors, and at least {@code 8}.
+     */
+    public static void setMaxJvmFetchParallelism(int parallelism) {
+        if (parallelism < 0) {
+            throw new IllegalArgumentException("parallelism must be >= 0, got " + parallelism);
+        }
+        ChunkLoader.JVM_LIMIT.max = parallelism;
+    }
+
+    public static int getMaxJvmFetchParallelism() {
+        return ChunkLoader.JVM_LIMIT.max;
+    }
+
+    /**
+     * Sets the executor running parallel range queries. Default is a shared pool of daemon threads.
+     */
+    public void setFetchExecutor(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        loader.executor = executor;
+    }
+
+    /**
+     * Mirrors index files to the given local directory, and reads them from there through memory mapped buffers.
+     *
+     * <p>A file is downloaded to the mirror the first time it is opened. Existing copies are checked now against
+     * the length, md5 and upload date in fs.files, and all other files in the mirror directory are removed, so
+     * the directory must be dedicated to this prefix. Reusing the same path across restarts lets a process
+     * serve queries without downloading unchanged files again.</p>
+     */
+    public void setMirror(Path path) throws IOException {
+        ensureOpen();
+        LocalMirror mirror = new LocalMirror(path, loader);
+        mirror.validate(catalog.refresh());
+        this.mirror = mirror;
+    }
+
+    /**
+     * Sets the policy picking the chunk size of each new file. Default is {@link ChunkSizePolicy#DEFAULT}.
+     */
+    public void setChunkSizePolicy(ChunkSizePolicy chunkSizePolicy) {
+        if (chunkSizePolicy == null) {
+            throw new NullPointerException("chunkSizePolicy");
+        }
+        this.chunkSizePolicy = chunkSizePolicy;
+    }
+
+    public ChunkSizePolicy getChunkSizePolicy() {
+        return chunkSizePolicy;
+    }
+
+    /**
+     * Sets the number of chunks an output inserts with one {@code insertMany}. Default is {@code 16}.
+     */
+    public void setWriteBatchChunks(int batchChunks) {
+        if (batchChunks < 1) {
+            throw new IllegalArgumentException("batchChunks must be >= 1, got " + batchChunks);
+        }
+        this.writeBatchChunks = batchChunks;
+    }
+
+    public int getWriteBatchChunks() {
+        return writeBatchChunks;
+    }
+
+    /**
+     * Sets the maximum number of batches an output has being inserted at once, writing blocks beyond.
+     * Default is {@code 4}.
+     */
+    public void setMaxWriteBatchesInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be >= 1, got " + maxInFlight);
+        }
+        this.maxWriteBatchesInFlight = maxInFlight;
+    }
+
+    public int getMaxWriteBatchesInFlight() {
+        return maxWriteBatchesInFlight;
+    }
+
+    /**
+     * Sets the executor inserting chunk batches. Default is a shared pool of daemon threads.
+     */
+    public void setWriteExecutor(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        this.writeExecutor = executor;
+    }
+
+    /**
+     * Sets the write concern of the chunks and fs.files documents written by outputs. Default is
+     * {@link WriteConcern#W1}, acknowledged by the primary only, whatever the write concern of the database or
+     * client: a written file may be lost on failover until it is synced.
+     *
+     * <p>Written files are made durable by {@link #sync(Collection)} instead, with one write using the
+     * {@link #setSyncWriteConcern sync write concern} for all files written so far. The write concern must be
+     * acknowledged, so that the sync is known to come after the writes. Only affects outputs created afterwards.</p>
+     *
+     * <p>The barrier only covers writes to the shard holding it, so when the chunks collection is sharded, outputs
+     * write with the sync write concern instead. Sharding is checked once, when the first output is created.</p>
+     */
+    public void setWriteConcern(WriteConcern writeConcern) {
+        if (!writeConcern.isAcknowledged()) {
+            throw new IllegalArgumentException("writeConcern must be acknowledged, got " + writeConcern);
+        }
+        this.writeConcern = writeConcern;
+    }
+
+    public WriteConcern getWriteConcern() {
+        return writeConcern;
+    }
+
+    /**
+     * Sets the write concern confirming written files on {@link #sync(Collection)} and renames to a segments_N
+     * file on {@link #renameFile}. Default is {@link WriteConcern#MAJORITY} journaled.
+     */
+    public void setSyncWriteConcern(WriteConcern writeConcern) {
+        if (!writeConcern.isAcknowledged()) {
+            throw new IllegalArgumentException("writeConcern must be acknowledged, got " + writeConcern);
+        }
+        barrier.writeConcern = writeConcern;
+    }
+
+    public WriteConcern getSyncWriteConcern() {
+        return barrier.writeConcern;
+    }
+
+    /**
+     * Sets the lease of the locks obtained afterwards. Default is 30 seconds.
+     *
+     * <p>A held lock is renewed in the background every third of its lease, and is checked by
+     * {@link org.apache.lucene.store.Lock#ensureValid()} without a query as long as it was renewed recently. A lock
+     * whose lease expired, e.g. after its owner crashed, can be obtained by another owner. Leases are compared with
+     * the clocks of the processes obtaining locks, so the lease must be well above their clock difference.</p>
+     */
+    public void setLockLease(long lease, TimeUnit unit) {
+        if (lease <= 0) {
+            throw new IllegalArgumentException("lease must be > 0, got " + lease);
+        }
+        this.lockLeaseMillis = unit.toMillis(lease);
+    }
+
+    public long getLockLeaseMillis() {
+        return lockLeaseMillis;
+    }
+
+    /**
+     * Sets the extensions of the files whose chunks are LZ4 compressed when written, e.g. {@code "fdt", "tvd",
+     * "cfs"}. Default is none.
+     *
+     * <p>Chunks are only stored compressed when it makes them smaller, and are decompressed when loaded, so
+     * cached and mirrored chunks are plain. Files are readable whatever this setting, including files written
+     * before compression was enabled. Only affects outputs created afterwards.</p>
+     */
+    public void setCompressedExtensions(String... extensions) {
+        this.compressedExtensions = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(extensions)));
+    }
+
+    public Set<String> getCompressedExtensions() {
+        return compressedExtensions;
+    }
+
+    /**
+     * Sets whether this directory keeps a manifest document of its files in the fs.manifests collection.
+     *
+     * <p>With a manifest, listing files and finding the latest commit take a single _id lookup instead of a
+     * query over fs.files. The manifest is built from fs.files if it does not exist yet. Every directory
+     * writing to this prefix must enable it, otherwise the files they change are missed.</p>
+     */
+    public void setManifest(boolean enabled) {
+        ensureOpen();
+        if (!enabled) {
+            catalog.setManifest(null);
+            return;
+        }
+        Manifest manifest = new Manifest(manifests, prefix);
+        if (manifest.read() == null) {
+            manifest.rebuild(catalog.query());
+        }
+        catalog.setManifest(manifest);
+    }
+
+    public boolean isManifest() {
+        return catalog.getManifest() != null;
+    }
+
+    /**
+     * Rebuilds the manifest from fs.files, e.g. after files were changed by a directory not using the manifest.
+     */
+    public void rebuildManifest() {
+        ensureOpen();
+        new Manifest(manifests, prefix).rebuild(catalog.query());
+    }
+
+    /**
+     * Returns the name of the latest segments_N file, or {@code null} if there is no commit.
+     */
+    public String getLatestSegmentsFileName() throws IOException {
+        ensureOpen();
+        Manifest manifest = catalog.getManifest();
+        long generation;
+        if (manifest != null) {
+            long start = System.nanoTime();
+            generation = manifest.generation(catalog.readPreference);
+            metrics.metadataQuery(System.nanoTime() - start);
+        } else {
+            generation = SegmentInfos.getLastCommitGeneration(listAll());
+        }
+        return generation < 0 ? null : IndexFileNames.fileNameFromGeneration(IndexFileNames.SEGMENTS, "", generation);
+    }
+
+    /**
+     * Returns the latest segments_N file, looking only at those uploaded at or after the given date unless the
+     * manifest is enabled, or {@code null} if there is none.
+     *
+     * @see CommitTailer
+     */
+    GridFSFile latestCommit(Date since) throws IOException {
+        ensureOpen();
+        if (catalog.getManifest() == null) {
+            return catalog.latestCommit(since);
+        }
+        String name = getLatestSegmentsFileName();
+        try {
+            return name == null ? null : catalog.get(name);
+        } catch (NoSuchFileException e) {
+            // deleted by a newer commit since
+            return null;
+        }
+    }
+
+    /**
+     * Sets the maximum number of files {@link #warm(Collection)} loads at once. Default is {@code 8}.
+     */
+    public void setWarmParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be >= 1, got " + parallelism);
+        }
+        this.warmParallelism = parallelism;
+    }
+
+    public int getWarmParallelism() {
+        return warmParallelism;
+    }
+
+    /**
+     * Sets the executor loading files for {@link #warm(Collection)}. Default is a shared pool of daemon threads.
+     * It should not be the fetch executor when that one is bounded, since warming waits for range queries.
+     */
+    public void setWarmExecutor(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        this.warmExecutor = executor;
+    }
+
+    /**
+     * Loads all files of the given commit point, including its segments_N file.
+     *
+     * @see #warm(Collection)
+     */
+    public CompletableFuture<Void> warm(SegmentInfos infos) throws IOException {
+        return warm(infos.files(true));
+    }
+
+    /**
+     * Loads all files of the given commit point.
+     *
+     * @see #warm(Collection)
+     */
+    public CompletableFuture<Void> warm(IndexCommit commit) throws IOException {
+        return warm(commit.getFileNames());
+    }
+
+    /**
+     * Loads the given files in the background, up to {@link #setWarmParallelism(int)} files at once, so that
+     * opening them afterwards does not wait for MongoDB, e.g. before making a new searcher visible.
+     *
+     * <p>With a mirror, files are downloaded to it. Otherwise their chunks are loaded into the
+     * {@link #getChunkCache() chunk cache}, which must be large enough to hold them.</p>
+     *
+     * @return a future completed once all files are loaded, or completed exceptionally with the first failure
+     */
+    public CompletableFuture<Void> warm(Collection<String> names) {
+        ensureOpen();
+        final Queue<String> queue = new ConcurrentLinkedQueue<>(new LinkedHashSet<>(names));
+        final int workers = Math.min(warmParallelism, queue.size());
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[workers];
+        for (int i = 0; i < workers; i++) {
+            futures[i] = CompletableFuture.runAsync(() -> {
+                String name;
+                while ((name = queue.poll()) != null) {
+                    try {
+                        warmFile(name);
+                    } catch (IOException e) {
+                        queue.clear();
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            }, warmExecutor);
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    private void warmFile(String name) throws IOException {
+        GridFSFile file = catalog.get(name);
+        LocalMirror mirror = this.mirror;
+        if (mirror != null) {
+            mirror.openInput(name, file, IOContext.READONCE).close();
+        } else {
+            // chunks stay in the cache once the table releases them
+            try (ChunkTable table = new ChunkTable(file, loader, pageChunks)) {
+                table.loadAll(true);
+            }
+        }
+    }
+
+    /**
+     * Sets how long loading chunks waits for the {@link MongodbChunkCache#setMemoryBudget memory budget} before
+     * failing with an {@link IOException}. Default is 30 seconds.
+     */
+    public void setMemoryBudgetTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout must be >= 0, got " + timeout);
+        }
+        loader.budgetTimeoutNanos = unit.toNanos(timeout);
+    }
+
+    /**
+     * Sets whether a non paged {@link #openInput} which does not fit in the
+     * {@link MongodbChunkCache#setMemoryBudget memory budget} opens the file paged instead of waiting for the budget.
+     * Default is {@code false}, since paged inputs need the file to stay until they are closed, see
+     * {@link #setPaged(boolean)}.
+     */
+    public void setPagedOverBudget(boolean pagedOverBudget) {
+        loader.pagedOverBudget = pagedOverBudget;
+    }
+
+    public boolean isPagedOverBudget() {
+        return loader.pagedOverBudget;
+    }
+
+    /**
+     * Returns the bytes of the chunks held by the inputs open on this directory, counting chunks shared by
+     * several inputs once. Chunks only kept by the cache are not included.
+     */
+    @Override
+    public long ramBytesUsed() {
+        Set<Chunk> chunks = Collections.newSetFromMap(new IdentityHashMap<>());
+        long bytes = 0;
+        for (ChunkTable table : loader.tables) {
+            bytes += table.addChunks(chunks);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the bytes held by each open input, by file name.
+     */
+    @Override
+    public Collection<Accountable> getChildResources() {
+        List<Accountable> resources = new ArrayList<>();
+        for (ChunkTable table : loader.tables) {
+            resources.add(Accountables.namedAccountable(table.file().getFilename(), table));
+        }
+        return Collections.unmodifiableList(resources);
+    }
+
+    /**
+     * Returns the metrics of this directory, its inputs, outputs and locks.
+     */
+    public MongodbMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Registers the {@link #getMetrics() metrics} of this directory in the platform MBean server, as
+     * {@code com.sftxy.lucene.store.mongodb:type=MongodbDirectory,prefix=<prefix>}, until it is closed.
+     */
+    public synchronized ObjectName registerMBean() throws JMException {
+        ensureOpen();
+        if (mbeanName == null) {
+            ObjectName name = new ObjectName("com.sftxy.lucene.store.mongodb:type=MongodbDirectory,prefix="
+                + ObjectName.quote(prefix));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            mbeanName = name;
+        }
+        return mbeanName;
+    }
+
+    /**
+     * Returns the chunk cache shared by all directories of this JVM, e.g. to size it or read its statistics.
+     */
+    public MongodbChunkCache getChunkCache() {
+        return cache;
     }
 
     @Override
     public String[] listAll() throws IOException {
         ensureOpen();
-        List<String> items = new ArrayList<>();
-        return fsBucket.find(regex("filename", Pattern.compile("^(?)" + prefix)))
-                .map(GridFSFile::getFilename)
-                .map(filename -> filename.substring(prefix.length() + 1))
-                .into(items)
-                .toArray(new String[items.size()]);
+        Map<String, GridFSFile> files = catalog.refresh();
+        return files.keySet().toArray(new String[files.size()]);
     }
 
+    /**
+     * Deletes the given file in the background, in batches with other deleted files. The file is no longer listed
+     * nor opened once this returns. Pending deletions are completed on {@link #close()}.
+     */
     @Override
     public void deleteFile(String name) throws IOException {
         ensureOpen();
-        GridFSFile file = fsBucket.find(new Document("filename", prefix(name))).first();
-        fsBucket.delete(file.getId());
+        GridFSFile file = catalog.get(name);
+        catalog.delete(name, file);
+        unsynced.remove(name);
+        if (mirror != null) {
+            mirror.delete(name);
+        }
+        deletes.add(file);
     }
 
     @Override
     public long fileLength(String name) throws IOException {
         ensureOpen();
-        GridFSFile file = fsBucket.find(new Document("filename", prefix(name))).first();
-        return file.getLength();
+        return catalog.get(name).getLength();
     }
 
     @Override
     public IndexOutput createOutput(String name, IOContext context) throws IOException {
         ensureOpen();
-        return new MongodbIndexOutput(prefix(name));
+        int chunkSize = chunkSizePolicy.chunkSize(name, context);
+        if (chunkSize < 1 || chunkSize > ChunkSizePolicy.MAX_CHUNK_SIZE) {
+            throw new IllegalStateException(chunkSizePolicy + " returned invalid chunk size " + chunkSize + " for " + name);
+        }
+        if (!indexesCreated) {
+            try {
+                MongodbBuckets.createIndexes(files, chunks);
+            } catch (MongoException e) {
+                // e.g. not allowed to create indexes, which must then be created by an administrator
+            }
+            chunksSharded = MongodbBuckets.isSharded(db, bucket + ".chunks");
+            indexesCreated = true;
+        }
+        boolean compress = compressedExtensions.contains(IndexFileNames.getExtension(name));
+        WriteConcern writeConcern = chunksSharded ? barrier.writeConcern : this.writeConcern;
+        ObjectId id = randomFileIds ? MongodbBuckets.randomObjectId() : new ObjectId();
+        return new MongodbIndexOutput(prefix(name), id, files.withWriteConcern(writeConcern),
+            chunks.withWriteConcern(writeConcern), chunkSize, compress, writeBatchChunks, maxWriteBatchesInFlight,
+            writeExecutor, file -> {
+                catalog.put(file);
+                unsynced.put(name, barrier.written());
+            }, metrics);
     }
 
+    /**
+     * Makes the given files durable, with a single barrier for all files written since the last one, if any of
+     * them was not synced yet.
+     *
+     * @see #setSyncWriteConcern(WriteConcern)
+     */
     @Override
     public void sync(Collection<String> names) throws IOException {
-        // ignore
+        ensureOpen();
+        long seq = 0;
+        for (String name : names) {
+            Long written = unsynced.get(name);
+            if (written != null) {
+                seq = Math.max(seq, written);
+            }
+        }
+        if (seq > 0) {
+            syncUpTo(seq);
+        }
+    }
+
+    private void syncUpTo(long seq) throws IOException {
+        barrier.await(seq);
+        long synced = barrier.synced();
+        unsynced.values().removeIf(written -> written <= synced);
     }
 
     @Override
     public void renameFile(String source, String dest) throws IOException {
         ensureOpen();
-        GridFSFile file = fsBucket.find(new Document("filename", prefix(source))).first();
+        GridFSFile file = catalog.get(source);
         fsBucket.rename(file.getId(), prefix(dest));
+        catalog.rename(source, file, dest);
+        unsynced.remove(source);
+        // the rename is a write of its own, covering the file's earlier writes
+        final long written = barrier.written();
+        unsynced.put(dest, written);
+        if (mirror != null) {
+            mirror.rename(source, dest);
+        }
+        // only renaming to segments_N publishes a commit, which must be durable once this returns; other
+        // renames are made durable by the next sync of the file, like writes
+        if (dest.startsWith(IndexFileNames.SEGMENTS) && !dest.equals(IndexFileNames.OLD_SEGMENTS_GEN)) {
+            syncUpTo(written);
+        }
     }
 
     @Override
     public IndexInput openInput(String name, IOContext context) throws IOException {
         ensureOpen();
-        GridFSFile file = fsBucket.find(new Document("filename", prefix(name))).first();
-        return new MongodbIndexInput(file, chunks);
+        long start = System.nanoTime();
+        GridFSFile file = catalog.get(name);
+        IndexInput input;
+        if (mirror != null) {
+            input = mirror.openInput(name, file, context);
+        } else {
+            input = new MongodbIndexInput(file, loader, paged, pageChunks);
+        }
+        metrics.openInput(name, context, System.nanoTime() - start);
+        return input;
     }
 
     @Override
     public synchronized void close() throws IOException {
         isOpen = false;
+        deletes.flush();
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (JMException e) {
+                // already unregistered
+            }
+            mbeanName = null;
+        }
     }
 
+    /**
+     * Creates the given lock, or takes it over if its lease expired.
+     *
+     * @throws IllegalStateException if the lock is held
+     * @deprecated use {@link #obtainLock(String)}, whose lock is renewed while held. A lock created here is never
+     *             renewed, so it can be taken over once the {@link #setLockLease lock lease} expires.
+     */
+    @Deprecated
     public void createLock(String lockName) {
-        locks.insertOne(new Document("_id", prefix(lockName)));
+        if (!createLock(lockName, new ObjectId().toHexString(), lockLeaseMillis)) {
+            throw new IllegalStateException("Lock held elsewhere: " + lockName);
+        }
     }
 
+    /**
+     * Returns whether the given lock is held, i.e. exists with a lease which has not expired.
+     *
+     * @deprecated use {@link org.apache.lucene.store.Lock#ensureValid()} on the lock from {@link #obtainLock(String)}
+     */
+    @Deprecated
     public boolean checkLock(String lockName) {
-        Document lock = locks.find(eq("_id", prefix(lockName))).first();
-        return lock != null;
+        return locks.find(and(eq("_id", prefix(lockName)), gte("expiresAt", new Date()))).first() != null;
     }
 
+    /**
+     * Removes the given lock, whoever holds it.
+     *
+     * @return {@code false} if there was no such lock
+     * @deprecated use {@link org.apache.lucene.store.Lock#close()} on the lock from {@link #obtainLock(String)}
+     */
+    @Deprecated
     public boolean removeLock(String lockName) {
-        DeleteResult result = locks.deleteOne(new Document("_id", prefix(lockName)));
+        DeleteResult result = locks.deleteOne(eq("_id", prefix(lockName)));
         return result.getDeletedCount() == 1;
     }
 
-    private String prefix(String name) {
-        return prefix + "/" + name;
+    /**
+     * Creates the given lock for the given owner, or takes it over if its lease expired.
+     *
+     * @return {@code false} if the lock is held by another owner
+     */
+    boolean createLock(String lockName, String owner, long leaseMillis) {
+        if (!lockIndexCreated) {
+            // the TTL monitor removes locks of crashed owners, about a minute after their lease expired
+            try {
+                locks.createIndex(Indexes.ascending("expiresAt"), new IndexOptions().expireAfter(0L, TimeUnit.SECONDS));
+            } catch (MongoException e) {
+                // expired locks are still taken over without the index
+            }
+            lockIndexCreated = true;
+        }
+        Date now = new Date();
+        Date expiresAt = new Date(now.getTime() + leaseMillis);
+        try {
+            locks.insertOne(new Document("_id", prefix(lockName))
+                .append("owner", owner)
+                .append("process", PROCESS)
+                .append("expiresAt", expiresAt));
+            return true;
+        } catch (MongoWriteException e) {
+            if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                throw e;
+            }
+        }
+        UpdateResult result = locks.updateOne(and(eq("_id", prefix(lockName)), lt("expiresAt", now)),
+            combine(set("owner", owner), set("process", PROCESS), set("expiresAt", expiresAt)));
+        return result.getMatchedCount() == 1;
     }
 
-    final class MongodbIndexOutput extends OutputStreamIndexOutput {
-        public MongodbIndexOutput(String filename) {
-            super("MongodbIndexOutput(filename=\"" + filename + "\")", fsBucket.openUploadStream(filename), 255);
-        }
+    /**
+     * Extends the lease of the given lock.
+     *
+     * @return {@code false} if the lock is no longer held by the given owner
+     */
+    boolean renewLock(String lockName, String owner, long leaseMillis) {
+        UpdateResult result = locks.updateOne(and(eq("_id", prefix(lockName)), eq("owner", owner)),
+            set("expiresAt", new Date(System.currentTimeMillis() + leaseMillis)));
+        return result.getMatchedCount() == 1;
+    }
+
+    /**
+     * Removes the given lock.
+     *
+     * @return {@code false} if the lock is no longer held by the given owner
+     */
+    boolean removeLock(String lockName, String owner) {
+        DeleteResult result = locks.deleteOne(and(eq("_id", prefix(lockName)), eq("owner", owner)));
+        return result.getDeletedCount() == 1;
+    }
+
+    private String prefix(String name) {
+        return prefix + "/" + name;
     }
 
 }
@@ -1,52 +1,84 @@
 package com.sftxy.lucene.store.mongodb;
 
-import static com.mongodb.client.model.Filters.*;
-import static com.mongodb.client.model.Sorts.*;
-
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collection;
+import java.util.Collections;
 
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.RandomAccessInput;
-import org.bson.Document;
-import org.bson.types.Binary;
+import org.apache.lucene.util.Accountable;
 
-import com.mongodb.client.MongoCollection;
 import com.mongodb.client.gridfs.model.GridFSFile;
 
 /**
  * Mongodb based IndexInput.
  *
- * <p>During creation, fetch all data from fs.chunks to construct {@link ByteBufferIndexInput}.</p>
+ * <p>During creation, fetch all data from fs.chunks to construct {@link ByteBufferIndexInput}.
+ * In paged mode, only fetch chunks when they are first accessed, {@code pageChunks} at a time.</p>
+ *
+ * <p>Closing the original input releases its chunks, freeing off-heap data no longer cached or used
+ * by another input. Clones must not be used after that.</p>
+ *
+ * <p>When the {@link MongodbChunkCache#setMemoryBudget memory budget} cannot hold the whole file, the input is
+ * opened paged instead, unless the directory is set to wait for the budget.</p>
  *
  * <p>After creation, delegate calls to {@link ByteBufferIndexInput}.</p>
  */
-public class MongodbIndexInput extends IndexInput implements RandomAccessInput {
+public class MongodbIndexInput extends IndexInput implements RandomAccessInput, Accountable {
 
-    private final ByteBufferIndexInput indexInput;
+    private final ChunkTable table;
+    private ByteBufferIndexInput indexInput;
+    private boolean isClone = false;
 
-    MongodbIndexInput(GridFSFile file, MongoCollection<Document> chunks) {
+    MongodbIndexInput(GridFSFile file, ChunkLoader loader, boolean paged, int pageChunks) throws IOException {
         super("MongodbIndexInput(file=\"" + file + "\")");
 
-        List<ByteBuffer> bufferList = new ArrayList<>();
-        ByteBuffer[] buffers = chunks.find(and(eq("files_id", file.getId())))
-            .sort(ascending("n"))
-            .map(doc -> doc.get("data", Binary.class).getData())
-            .map(ByteBuffer::wrap)
-            .into(bufferList)
-            .toArray(new ByteBuffer[bufferList.size()]);
-
-        long length = file.getLength();
-        int chunkSize = file.getChunkSize();
+        table = new ChunkTable(file, loader, pageChunks);
+        String description = "MongodbIndexInput$Delegate(file=\"" + file + "\")";
+        boolean trackClones = table.direct();
+
+        try {
+            ByteBuffer[] buffers = paged ? null : table.loadAll(!loader.pagedOverBudget);
+            if (buffers == null) {
+                indexInput = ByteBufferIndexInput.newInstance(description, table, trackClones);
+            } else {
+                indexInput = ByteBufferIndexInput.newInstance(description, buffers, table.length(), table.chunkSize(), trackClones);
+            }
+        } catch (IOException | RuntimeException e) {
+            table.close();
+            throw e;
+        }
+    }
 
-        indexInput = ByteBufferIndexInput.newInstance("MongodbIndexInput$Delegate(file=\"" + file + "\")", buffers, length, chunkSize);
+    @Override
+    public MongodbIndexInput clone() {
+        MongodbIndexInput clone = (MongodbIndexInput) super.clone();
+        clone.indexInput = indexInput.clone();
+        clone.isClone = true;
+        return clone;
     }
 
     @Override
     public void close() throws IOException {
         indexInput.close();
+        if (!isClone) {
+            table.close();
+        }
+    }
+
+    /**
+     * Returns the bytes of the chunks held by this input and its clones, including chunks also held by the cache
+     * or by other inputs over the same file.
+     */
+    @Override
+    public long ramBytesUsed() {
+        return table.ramBytesUsed();
+    }
+
+    @Override
+    public Collection<Accountable> getChildResources() {
+        return Collections.emptyList();
     }
 
     @Override
@@ -79,6 +111,41 @@ public class MongodbIndexInput extends IndexInput implements RandomAccessInput {
         indexInput.readBytes(b, offset, len);
     }
 
+    @Override
+    public short readShort() throws IOException {
+        return indexInput.readShort();
+    }
+
+    @Override
+    public int readInt() throws IOException {
+        return indexInput.readInt();
+    }
+
+    @Override
+    public long readLong() throws IOException {
+        return indexInput.readLong();
+    }
+
+    @Override
+    public int readVInt() throws IOException {
+        return indexInput.readVInt();
+    }
+
+    @Override
+    public long readVLong() throws IOException {
+        return indexInput.readVLong();
+    }
+
+    @Override
+    public long readZLong() throws IOException {
+        return indexInput.readZLong();
+    }
+
+    @Override
+    public String readString() throws IOException {
+        return indexInput.readString();
+    }
+
     @Override
     public byte readByte(long pos) throws IOException {
         return indexInput.readByte(pos);
@@ -0,0 +1,249 @@
+package com.sftxy.lucene.store.mongodb;
+
+import static com.mongodb.client.model.Filters.*;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
+import java.util.function.Consumer;
+import java.util.zip.Checksum;
+
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.codecs.compressing.Compressor;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.BufferedChecksum;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.ThreadInterruptedException;
+import org.bson.BsonObjectId;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Mongodb based IndexOutput.
+ *
+ * <p>Cuts written bytes into GridFS chunks directly, and inserts them in batches of {@code batchChunks} chunks
+ * with {@code insertMany}, up to {@code maxInFlight} batches being inserted at once on the write executor while
+ * the caller keeps writing.</p>
+ *
+ * <p>With {@code compress}, each chunk is LZ4 compressed on the write executor before being inserted, see
+ * {@link ChunkCodec}.</p>
+ *
+ * <p>The fs.files document is inserted on close, after all chunks, so readers never see a partial file.
+ * Its {@code md5} is the digest of the uncompressed bytes, updated chunk by chunk as they are cut, like the one
+ * GridFS drivers write. The written file is then passed to the {@code onClose} callback.</p>
+ */
+public class MongodbIndexOutput extends IndexOutput {
+
+    private final MongoCollection<Document> files;
+    private final MongoCollection<Document> chunks;
+    private final String filename;
+    private final ObjectId id;
+    private final int chunkSize;
+    private final int batchChunks;
+    private final int maxInFlight;
+    private final boolean compress;
+    private final Semaphore inFlight;
+    private final Executor executor;
+    private final Consumer<GridFSFile> onClose;
+    private final MongodbMetrics metrics;
+    private final Checksum crc = new BufferedChecksum(new CRC32());
+    private final MessageDigest md5 = newMD5();
+
+    private byte[] buffer;
+    private int upto;
+    private long flushed;
+    private int n;
+    private List<Document> batch;
+    private volatile Throwable failure;
+    private boolean closed;
+
+    MongodbIndexOutput(String filename, ObjectId id, MongoCollection<Document> files, MongoCollection<Document> chunks,
+                       int chunkSize, boolean compress, int batchChunks, int maxInFlight, Executor executor,
+                       Consumer<GridFSFile> onClose, MongodbMetrics metrics) {
+        super("MongodbIndexOutput(filename=\"" + filename + "\")");
+        this.files = files;
+        this.chunks = chunks;
+        this.filename = filename;
+        this.id = id;
+        this.chunkSize = chunkSize;
+        this.compress = compress;
+        this.batchChunks = batchChunks;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.executor = executor;
+        this.onClose = onClose;
+        this.metrics = metrics;
+        this.buffer = new byte[chunkSize];
+        this.batch = new ArrayList<>(batchChunks);
+    }
+
+    @Override
+    public void writeByte(byte b) throws IOException {
+        if (upto == chunkSize) {
+            flushChunk();
+        }
+        buffer[upto++] = b;
+        crc.update(b);
+    }
+
+    @Override
+    public void writeBytes(byte[] b, int offset, int length) throws IOException {
+        crc.update(b, offset, length);
+        while (length > 0) {
+            if (upto == chunkSize) {
+                flushChunk();
+            }
+            final int len = Math.min(length, chunkSize - upto);
+            System.arraycopy(b, offset, buffer, upto, len);
+            upto += len;
+            offset += len;
+            length -= len;
+        }
+    }
+
+    @Override
+    public long getFilePointer() {
+        return flushed + upto;
+    }
+
+    @Override
+    public long getChecksum() throws IOException {
+        return crc.getValue();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        boolean success = false;
+        try {
+            if (upto > 0) {
+                flushChunk();
+            }
+            if (!batch.isEmpty()) {
+                submitBatch();
+            }
+            // wait for all batches
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+            checkFailure();
+
+            final Date uploadDate = new Date();
+            final String digest = toHex(md5.digest());
+            files.insertOne(new Document("_id", id)
+                .append("filename", filename)
+                .append("length", flushed)
+                .append("chunkSize", chunkSize)
+                .append("uploadDate", uploadDate)
+                .append("md5", digest));
+            success = true;
+            onClose.accept(new GridFSFile(new BsonObjectId(id), filename, flushed, chunkSize, uploadDate, digest, null));
+        } catch (InterruptedException e) {
+            throw new ThreadInterruptedException(e);
+        } finally {
+            buffer = null;
+            batch = null;
+            if (!success) {
+                // wait for batches still in flight before cleaning up
+                inFlight.acquireUninterruptibly(maxInFlight);
+                try {
+                    chunks.deleteMany(eq("files_id", id));
+                } catch (RuntimeException e) {
+                    // best effort, the file is not visible without its fs.files document
+                }
+            }
+        }
+    }
+
+    private void flushChunk() throws IOException {
+        if (buffer == null) {
+            throw new AlreadyClosedException("Already closed: " + this);
+        }
+        md5.update(buffer, 0, upto);
+        final byte[] data = upto == chunkSize ? buffer : Arrays.copyOf(buffer, upto);
+        batch.add(new Document("files_id", id).append("n", n++).append("data", new Binary(data)));
+        flushed += upto;
+        upto = 0;
+        buffer = new byte[chunkSize];
+        if (batch.size() == batchChunks) {
+            submitBatch();
+        }
+    }
+
+    private void submitBatch() throws IOException {
+        checkFailure();
+        final List<Document> docs = batch;
+        batch = new ArrayList<>(batchChunks);
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            throw new ThreadInterruptedException(e);
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    if (compress) {
+                        final Compressor compressor = CompressionMode.FAST.newCompressor();
+                        for (Document doc : docs) {
+                            ChunkCodec.compress(doc, compressor);
+                        }
+                    }
+                    long bytes = 0;
+                    for (Document doc : docs) {
+                        bytes += doc.get("data", Binary.class).length();
+                    }
+                    final long start = System.nanoTime();
+                    chunks.insertMany(docs, new InsertManyOptions().ordered(false));
+                    metrics.chunkInsert(System.nanoTime() - start, docs.size(), bytes);
+                } catch (Throwable t) {
+                    failure = t;
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            throw new IOException("Unable to write chunks of " + this, e);
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        final Throwable t = failure;
+        if (t != null) {
+            throw new IOException("Unable to write chunks of " + this, t);
+        }
+    }
+
+    private static MessageDigest newMD5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports MD5
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
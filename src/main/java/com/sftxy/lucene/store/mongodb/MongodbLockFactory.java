@@ -1,6 +1,9 @@
 package com.sftxy.lucene.store.mongodb;
 
 import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
@@ -8,18 +11,34 @@ import org.apache.lucene.store.Lock;
 import org.apache.lucene.store.LockFactory;
 import org.apache.lucene.store.LockObtainFailedException;
 import org.apache.lucene.store.LockReleaseFailedException;
+import org.bson.types.ObjectId;
 
-import com.mongodb.MongoWriteException;
+import com.mongodb.MongoException;
 
 /**
  * Mongodb based LockFactory.
  *
- * <p>This implementation keep lock in a Mongodb collection called "fs.locks", using lock name as _id in document.</p>
+ * <p>This implementation keep lock in the "&lt;bucket&gt;.locks" collection of the directory, "fs.locks" by default,
+ * using lock name as _id in document.</p>
+ *
+ * <p>Locks are leases: the document holds the owner of the lock and the time its lease expires, which a heartbeat
+ * pushes back every third of the lease, see {@link MongodbDirectory#setLockLease}. A TTL index on the expiry
+ * removes the locks of crashed owners, and an expired lock may be taken over before that.</p>
  */
 public class MongodbLockFactory extends LockFactory {
 
     public static final MongodbLockFactory INSTANCE = new MongodbLockFactory();
 
+    private static final ScheduledThreadPoolExecutor HEARTBEAT = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "mongodb-lock-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        HEARTBEAT.setRemoveOnCancelPolicy(true);
+    }
+
     private MongodbLockFactory() {}
 
     @Override
@@ -28,36 +47,92 @@ public class MongodbLockFactory extends LockFactory {
             throw new IllegalArgumentException(getClass().getSimpleName() + " can only be used with MongodbDirectory");
         }
         MongodbDirectory dir = (MongodbDirectory) dir0;
+        String owner = new ObjectId().toHexString();
+        long leaseMillis = dir.getLockLeaseMillis();
 
+        long start = System.nanoTime();
+        boolean obtained = false;
         try {
-            dir.createLock(lockName);
-        } catch (MongoWriteException e) {
-            throw new LockObtainFailedException("Lock held elsewhere: " + lockName, e);
+            obtained = dir.createLock(lockName, owner, leaseMillis);
+        } catch (MongoException e) {
+            throw new LockObtainFailedException("Unable to obtain lock: " + lockName, e);
+        } finally {
+            dir.getMetrics().lockObtain(lockName, System.nanoTime() - start, obtained);
+        }
+        if (!obtained) {
+            throw new LockObtainFailedException("Lock held elsewhere: " + lockName);
         }
 
-        return new MongodbLock(dir, lockName);
+        return new MongodbLock(dir, lockName, owner, leaseMillis, start);
     }
 
     static final class MongodbLock extends Lock {
 
         private final MongodbDirectory dir;
         private final String lockName;
-
+        private final String owner;
+        private final long leaseMillis;
+        private final long leaseNanos;
+        private final ScheduledFuture<?> heartbeat;
+
+        /** Until when the lease is known valid, from the time its last renewal was sent. */
+        private volatile long expiresNanos;
+        private volatile boolean lost;
         private volatile boolean closed;
 
-        MongodbLock(MongodbDirectory dir, String lockName) {
+        MongodbLock(MongodbDirectory dir, String lockName, String owner, long leaseMillis, long obtainedNanos) {
             this.dir = dir;
             this.lockName = lockName;
+            this.owner = owner;
+            this.leaseMillis = leaseMillis;
+            this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+            this.expiresNanos = obtainedNanos + leaseNanos;
+            this.heartbeat = HEARTBEAT.scheduleWithFixedDelay(() -> {
+                try {
+                    renew();
+                } catch (RuntimeException e) {
+                    // retried on the next beat, or by ensureValid once the lease is about to expire
+                }
+            }, Math.max(1, leaseMillis / 3), Math.max(1, leaseMillis / 3), TimeUnit.MILLISECONDS);
         }
 
+        /**
+         * Checks the lease locally, and only renews it now if the heartbeat did not for a third of the lease.
+         */
         @Override
         public void ensureValid() throws IOException {
             if (closed) {
                 throw new AlreadyClosedException("Lock instance already released: " + this);
             }
+            if (!lost && System.nanoTime() - (expiresNanos - leaseNanos / 3) < 0) {
+                return;
+            }
+            try {
+                renew();
+            } catch (MongoException e) {
+                if (System.nanoTime() - expiresNanos >= 0) {
+                    throw new AlreadyClosedException("Lock lease expired: " + this, e);
+                }
+            }
+            if (lost) {
+                throw new AlreadyClosedException("Underlying lock deleted or taken over by other programs: " + this);
+            }
+        }
 
-            if (!dir.checkLock(lockName)) {
-                throw new AlreadyClosedException("Underlying lock deleted by other programs: " + this);
+        private synchronized void renew() {
+            if (lost || closed) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                if (dir.renewLock(lockName, owner, leaseMillis)) {
+                    expiresNanos = start + leaseNanos;
+                } else {
+                    lost = true;
+                    heartbeat.cancel(false);
+                }
+            } finally {
+                dir.getMetrics().lockVerify(lockName, System.nanoTime() - start);
             }
         }
 
@@ -67,15 +142,23 @@ public class MongodbLockFactory extends LockFactory {
                 return;
             }
 
+            heartbeat.cancel(false);
+            long start = System.nanoTime();
             try {
-                if (!dir.removeLock(lockName)) {
+                if (!dir.removeLock(lockName, owner)) {
                     throw new LockReleaseFailedException("Lock already removed: " + this);
                 }
             } catch (Throwable throwable) {
                 throw new LockReleaseFailedException("Unable to remove lock: " + this);
             } finally {
                 closed = true;
+                dir.getMetrics().lockRelease(lockName, System.nanoTime() - start);
             }
         }
+
+        @Override
+        public String toString() {
+            return "MongodbLock(" + lockName + ",owner=" + owner + ")";
+        }
     }
 }
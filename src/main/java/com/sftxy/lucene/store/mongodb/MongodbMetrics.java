@@ -0,0 +1,343 @@
+package com.sftxy.lucene.store.mongodb;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.store.IOContext;
+
+/**
+ * Counters and latency histograms of one {@link MongodbDirectory}, its inputs, outputs and locks.
+ *
+ * <p>Recording only adds to striped {@link LongAdder}s, without allocating or locking, so metrics are always on.
+ * Each event is also passed to the {@link Listener}, if one is set.</p>
+ *
+ * @see MongodbDirectory#getMetrics()
+ * @see MongodbDirectory#registerMBean()
+ */
+public final class MongodbMetrics implements MongodbMetricsMXBean {
+
+    /**
+     * Receives every recorded event, on the thread which recorded it. Implementations must be fast and thread safe.
+     */
+    public interface Listener {
+
+        /** A query of fs.files or fs.manifests. */
+        default void onMetadataQuery(long nanos) {}
+
+        /** A query of fs.chunks, which returned the given chunks. */
+        default void onChunkQuery(long nanos, int chunks, long bytes) {}
+
+        /** An insert of written chunks. */
+        default void onChunkInsert(long nanos, int chunks, long bytes) {}
+
+        /** An {@link MongodbDirectory#openInput} of the given file. */
+        default void onOpenInput(String name, IOContext context, long nanos) {}
+
+        /** An attempt to obtain a lock, successful or not. */
+        default void onLockObtain(String lockName, long nanos, boolean obtained) {}
+
+        /** A check that a lock is still held. */
+        default void onLockVerify(String lockName, long nanos) {}
+
+        /** A lock release. */
+        default void onLockRelease(String lockName, long nanos) {}
+
+        /** A durability barrier, confirming the writes made so far. */
+        default void onSync(long nanos) {}
+
+        /** A background deletion of the given number of files. */
+        default void onDelete(long nanos, int files) {}
+    }
+
+    private static final Listener NO_LISTENER = new Listener() {};
+
+    private final Histogram metadataQueries = new Histogram();
+    private final Histogram chunkQueries = new Histogram();
+    private final LongAdder chunksFetched = new LongAdder();
+    private final LongAdder bytesFetched = new LongAdder();
+    private final Histogram chunkInserts = new Histogram();
+    private final LongAdder chunksWritten = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final Histogram opens = new Histogram();
+    private final Map<String, Histogram> opensByKind = new ConcurrentHashMap<>();
+    private final Histogram lockObtains = new Histogram();
+    private final LongAdder lockObtainFailures = new LongAdder();
+    private final Histogram lockVerifies = new Histogram();
+    private final Histogram lockReleases = new Histogram();
+    private final Histogram syncs = new Histogram();
+    private final Histogram deletes = new Histogram();
+    private final LongAdder filesDeleted = new LongAdder();
+    private final LongAdder deleteFailures = new LongAdder();
+    private final MongodbChunkCache cache;
+
+    private volatile Listener listener = NO_LISTENER;
+
+    MongodbMetrics(MongodbChunkCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Sets the listener receiving every event, {@code null} for none.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener == null ? NO_LISTENER : listener;
+    }
+
+    void metadataQuery(long nanos) {
+        metadataQueries.record(nanos);
+        listener.onMetadataQuery(nanos);
+    }
+
+    void chunkQuery(long nanos, int chunks, long bytes) {
+        chunkQueries.record(nanos);
+        chunksFetched.add(chunks);
+        bytesFetched.add(bytes);
+        listener.onChunkQuery(nanos, chunks, bytes);
+    }
+
+    void chunkInsert(long nanos, int chunks, long bytes) {
+        chunkInserts.record(nanos);
+        chunksWritten.add(chunks);
+        bytesWritten.add(bytes);
+        listener.onChunkInsert(nanos, chunks, bytes);
+    }
+
+    void openInput(String name, IOContext context, long nanos) {
+        opens.record(nanos);
+        final String extension = IndexFileNames.getExtension(name);
+        final String kind = (extension == null ? "none" : extension) + "/" + context.context;
+        Histogram histogram = opensByKind.get(kind);
+        if (histogram == null) {
+            histogram = opensByKind.computeIfAbsent(kind, k -> new Histogram());
+        }
+        histogram.record(nanos);
+        listener.onOpenInput(name, context, nanos);
+    }
+
+    void lockObtain(String lockName, long nanos, boolean obtained) {
+        lockObtains.record(nanos);
+        if (!obtained) {
+            lockObtainFailures.increment();
+        }
+        listener.onLockObtain(lockName, nanos, obtained);
+    }
+
+    void lockVerify(String lockName, long nanos) {
+        lockVerifies.record(nanos);
+        listener.onLockVerify(lockName, nanos);
+    }
+
+    void lockRelease(String lockName, long nanos) {
+        lockReleases.record(nanos);
+        listener.onLockRelease(lockName, nanos);
+    }
+
+    void sync(long nanos) {
+        syncs.record(nanos);
+        listener.onSync(nanos);
+    }
+
+    void delete(long nanos, int files) {
+        deletes.record(nanos);
+        filesDeleted.add(files);
+        listener.onDelete(nanos, files);
+    }
+
+    void deleteFailure(int files) {
+        deleteFailures.add(files);
+    }
+
+    @Override
+    public Histogram getMetadataQueries() {
+        return metadataQueries;
+    }
+
+    @Override
+    public Histogram getChunkQueries() {
+        return chunkQueries;
+    }
+
+    @Override
+    public long getChunksFetched() {
+        return chunksFetched.sum();
+    }
+
+    @Override
+    public long getBytesFetched() {
+        return bytesFetched.sum();
+    }
+
+    @Override
+    public Histogram getChunkInserts() {
+        return chunkInserts;
+    }
+
+    @Override
+    public long getChunksWritten() {
+        return chunksWritten.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public Histogram getOpenInputs() {
+        return opens;
+    }
+
+    @Override
+    public Map<String, Histogram> getOpenInputsByKind() {
+        return new TreeMap<>(opensByKind);
+    }
+
+    @Override
+    public Histogram getLockObtains() {
+        return lockObtains;
+    }
+
+    @Override
+    public long getLockObtainFailures() {
+        return lockObtainFailures.sum();
+    }
+
+    @Override
+    public Histogram getLockVerifies() {
+        return lockVerifies;
+    }
+
+    @Override
+    public Histogram getLockReleases() {
+        return lockReleases;
+    }
+
+    @Override
+    public Histogram getSyncs() {
+        return syncs;
+    }
+
+    @Override
+    public Histogram getDeletes() {
+        return deletes;
+    }
+
+    @Override
+    public long getFilesDeleted() {
+        return filesDeleted.sum();
+    }
+
+    @Override
+    public long getDeleteFailures() {
+        return deleteFailures.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cache.getHitCount();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cache.getMissCount();
+    }
+
+    @Override
+    public long getCacheBytes() {
+        return cache.getBytes();
+    }
+
+    @Override
+    public long getMemoryBytes() {
+        return cache.getMemoryBytes();
+    }
+
+    @Override
+    public String toString() {
+        return "MongodbMetrics(metadataQueries=" + metadataQueries + ",chunkQueries=" + chunkQueries
+            + ",chunksFetched=" + getChunksFetched() + ",bytesFetched=" + getBytesFetched()
+            + ",chunkInserts=" + chunkInserts + ",chunksWritten=" + getChunksWritten() + ",bytesWritten=" + getBytesWritten()
+            + ",openInputs=" + opens + ",lockObtains=" + lockObtains + ",lockVerifies=" + lockVerifies
+            + ",lockReleases=" + lockReleases + ",syncs=" + syncs + ",deletes=" + deletes + ",filesDeleted=" + getFilesDeleted()
+            + ",deleteFailures=" + getDeleteFailures() + ")";
+    }
+
+    /**
+     * Latency histogram with one bucket per power of two nanoseconds. Percentiles are the upper bound of their
+     * bucket, so they overestimate by less than a factor of two.
+     */
+    public static final class Histogram {
+
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets[64 - Long.numberOfLeadingZeros(nanos) - (nanos == 0 ? 0 : 1)].increment();
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getTotalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long getMaxNanos() {
+            return maxNanos.get();
+        }
+
+        public long getP50Nanos() {
+            return getPercentileNanos(0.5);
+        }
+
+        public long getP99Nanos() {
+            return getPercentileNanos(0.99);
+        }
+
+        /**
+         * Returns the upper bound of the latency of the given fraction of recorded events, {@code 0} if none.
+         */
+        public long getPercentileNanos(double fraction) {
+            final long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            final long rank = (long) Math.ceil(fraction * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(i == 63 ? Long.MAX_VALUE : (2L << i) - 1, getMaxNanos());
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return "(count=" + getCount() + ",totalNanos=" + getTotalNanos() + ",p50Nanos=" + getP50Nanos()
+                + ",p99Nanos=" + getP99Nanos() + ",maxNanos=" + getMaxNanos() + ")";
+        }
+    }
+}
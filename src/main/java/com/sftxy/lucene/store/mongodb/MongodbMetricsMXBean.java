@@ -0,0 +1,64 @@
+package com.sftxy.lucene.store.mongodb;
+
+import java.util.Map;
+
+import com.sftxy.lucene.store.mongodb.MongodbMetrics.Histogram;
+
+/**
+ * JMX view of {@link MongodbMetrics}. Latencies are in nanoseconds.
+ */
+public interface MongodbMetricsMXBean {
+
+    /** Queries of fs.files or fs.manifests. */
+    Histogram getMetadataQueries();
+
+    /** Queries of fs.chunks. */
+    Histogram getChunkQueries();
+
+    long getChunksFetched();
+
+    long getBytesFetched();
+
+    /** Inserts of written chunks. */
+    Histogram getChunkInserts();
+
+    long getChunksWritten();
+
+    long getBytesWritten();
+
+    Histogram getOpenInputs();
+
+    /** Opened inputs by file extension and {@link org.apache.lucene.store.IOContext.Context}, e.g. {@code "doc/READ"}. */
+    Map<String, Histogram> getOpenInputsByKind();
+
+    Histogram getLockObtains();
+
+    long getLockObtainFailures();
+
+    Histogram getLockVerifies();
+
+    Histogram getLockReleases();
+
+    /** Durability barriers run by {@code sync} and {@code renameFile}. */
+    Histogram getSyncs();
+
+    /** Batches of files deleted in the background. */
+    Histogram getDeletes();
+
+    long getFilesDeleted();
+
+    /** Files whose deletion failed after retries, which are listed again unless their fs.files document was deleted. */
+    long getDeleteFailures();
+
+    /** Hits of the chunk cache shared by all directories. */
+    long getCacheHits();
+
+    /** Misses of the chunk cache shared by all directories. */
+    long getCacheMisses();
+
+    /** Bytes cached by the chunk cache shared by all directories. */
+    long getCacheBytes();
+
+    /** Chunk data bytes alive in the JVM, see {@link MongodbChunkCache#getMemoryBytes()}. */
+    long getMemoryBytes();
+}
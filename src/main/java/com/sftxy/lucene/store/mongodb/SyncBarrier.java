@@ -0,0 +1,84 @@
+package com.sftxy.lucene.store.mongodb;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Updates.*;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.UpdateOptions;
+
+/**
+ * Group commit of the writes of one {@link MongodbDirectory} prefix, with a barrier document in the fs.syncs
+ * collection having the prefix as _id.
+ *
+ * <p>Files are written with a cheap write concern, acknowledged by the primary only, and each acknowledged
+ * write is numbered by {@link #written()}. {@link #await(long)} makes all writes up to a number durable by updating
+ * the barrier document with the sync write concern: the primary applies writes in order, so once the barrier is
+ * replicated to a majority and journaled, so is every write acknowledged before it. Threads waiting while a
+ * barrier runs do not run another one if it started after their writes.</p>
+ *
+ * <p>This only holds for writes to the replica set holding the barrier document. Chunks of a sharded chunks
+ * collection are on other shards, so {@link MongodbDirectory} then writes files with the sync write concern, and the
+ * barrier only orders the renames of commit points.</p>
+ */
+final class SyncBarrier {
+
+    private final MongoCollection<Document> syncs;
+    private final String prefix;
+    private final MongodbMetrics metrics;
+    private final AtomicLong written = new AtomicLong();
+
+    private volatile long synced;
+    volatile WriteConcern writeConcern = WriteConcern.MAJORITY.withJournal(true);
+
+    SyncBarrier(MongoCollection<Document> syncs, String prefix, MongodbMetrics metrics) {
+        this.syncs = syncs;
+        this.prefix = prefix;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Numbers an acknowledged write.
+     */
+    long written() {
+        return written.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of the last write known to be durable.
+     */
+    long synced() {
+        return synced;
+    }
+
+    /**
+     * Waits until all writes up to the given number are durable, running a barrier if needed.
+     */
+    void await(long seq) throws IOException {
+        if (synced >= seq) {
+            return;
+        }
+        synchronized (this) {
+            if (synced >= seq) {
+                return;
+            }
+            final long upTo = written.get();
+            final long start = System.nanoTime();
+            try {
+                // a real change, so that the barrier is a new operation after all acknowledged writes
+                syncs.withWriteConcern(writeConcern).updateOne(eq("_id", prefix),
+                    combine(inc("barriers", 1L), currentDate("syncedAt")), new UpdateOptions().upsert(true));
+            } catch (MongoException e) {
+                throw new IOException("Unable to sync " + prefix, e);
+            }
+            metrics.sync(System.nanoTime() - start);
+            synced = upTo;
+        }
+    }
+}
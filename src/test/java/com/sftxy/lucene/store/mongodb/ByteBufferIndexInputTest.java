@@ -0,0 +1,209 @@
+package com.sftxy.lucene.store.mongodb;
+
+import static org.junit.Assert.*;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.RandomAccessInput;
+import org.junit.Test;
+
+public class ByteBufferIndexInputTest {
+
+    private static final int CHUNK = 16;
+    private static final int ODD_CHUNK = 13;
+
+    private static ByteBufferIndexInput input(byte[] data, int chunkSize) {
+        return input(data, chunkSize, false);
+    }
+
+    private static ByteBufferIndexInput input(byte[] data, int chunkSize, boolean trackClones) {
+        final ByteBuffer[] buffers = new ByteBuffer[data.length / chunkSize + 1];
+        for (int i = 0; i < buffers.length; i++) {
+            final int offset = i * chunkSize;
+            buffers[i] = ByteBuffer.wrap(data, offset, Math.min(chunkSize, data.length - offset)).slice();
+        }
+        return ByteBufferIndexInput.newInstance("test", buffers, data.length, chunkSize, trackClones);
+    }
+
+    private static long bigEndian(byte[] data, int pos, int n) {
+        long v = 0;
+        for (int i = 0; i < n; i++) {
+            v = (v << 8) | (data[pos + i] & 0xFF);
+        }
+        return v;
+    }
+
+    @Test
+    public void testReadsAcrossBoundaries() throws Exception {
+        doTestReadsAcrossBoundaries(CHUNK);
+        doTestReadsAcrossBoundaries(ODD_CHUNK);
+    }
+
+    private void doTestReadsAcrossBoundaries(int chunkSize) throws Exception {
+        final byte[] data = new byte[10 * chunkSize + 5];
+        new Random(0).nextBytes(data);
+        try (IndexInput in = input(data, chunkSize)) {
+            for (int pos = 0; pos + Long.BYTES <= data.length; pos++) {
+                in.seek(pos);
+                assertEquals(bigEndian(data, pos, Long.BYTES), in.readLong());
+                in.seek(pos);
+                assertEquals((int) bigEndian(data, pos, Integer.BYTES), in.readInt());
+                in.seek(pos);
+                assertEquals((short) bigEndian(data, pos, Short.BYTES), in.readShort());
+                assertEquals(pos + Short.BYTES, in.getFilePointer());
+            }
+
+            final byte[] all = new byte[data.length];
+            in.seek(0);
+            in.readBytes(all, 0, all.length);
+            assertArrayEquals(data, all);
+            try {
+                in.readByte();
+                fail();
+            } catch (EOFException expected) {
+            }
+            assertEquals(data.length, in.getFilePointer());
+        }
+    }
+
+    @Test
+    public void testPositionalReadsKeepFilePointer() throws Exception {
+        doTestPositionalReadsKeepFilePointer(CHUNK);
+        doTestPositionalReadsKeepFilePointer(ODD_CHUNK);
+    }
+
+    private void doTestPositionalReadsKeepFilePointer(int chunkSize) throws Exception {
+        final byte[] data = new byte[10 * chunkSize + 5];
+        new Random(1).nextBytes(data);
+        try (IndexInput in = input(data, chunkSize)) {
+            final IndexInput slice = in.slice("slice", 3, data.length - 3);
+            final RandomAccessInput ra = (RandomAccessInput) slice;
+            slice.seek(7);
+            for (int pos = 0; pos + Long.BYTES <= slice.length(); pos++) {
+                assertEquals(bigEndian(data, 3 + pos, Long.BYTES), ra.readLong(pos));
+                assertEquals((int) bigEndian(data, 3 + pos, Integer.BYTES), ra.readInt(pos));
+                assertEquals((short) bigEndian(data, 3 + pos, Short.BYTES), ra.readShort(pos));
+                assertEquals(data[3 + pos], ra.readByte(pos));
+                assertEquals(7, slice.getFilePointer());
+            }
+            try {
+                ra.readLong(slice.length() - 4);
+                fail();
+            } catch (EOFException expected) {
+            }
+            assertEquals(data[3 + 7], slice.readByte());
+        }
+    }
+
+    @Test
+    public void testClonesAndSlices() throws Exception {
+        final byte[] data = new byte[10 * CHUNK];
+        new Random(4).nextBytes(data);
+        final IndexInput in = input(data, CHUNK, true);
+        in.seek(5);
+        final IndexInput clone = in.clone();
+        assertEquals(5, clone.getFilePointer());
+        assertEquals(data[5], clone.readByte());
+        assertEquals(5, in.getFilePointer());
+
+        // a slice ending on a chunk boundary, and a slice of it
+        final IndexInput slice = in.slice("slice", CHUNK + 3, 4 * CHUNK - 3);
+        final IndexInput sliceOfSlice = slice.slice("sliceOfSlice", CHUNK - 3, 2 * CHUNK);
+        assertEquals(data[2 * CHUNK], sliceOfSlice.readByte());
+        sliceOfSlice.seek(sliceOfSlice.length());
+        assertEquals(sliceOfSlice.length(), sliceOfSlice.getFilePointer());
+        try {
+            sliceOfSlice.readByte();
+            fail();
+        } catch (EOFException expected) {
+        }
+        final byte[] bytes = new byte[(int) slice.length()];
+        slice.readBytes(bytes, 0, bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            assertEquals(data[CHUNK + 3 + i], bytes[i]);
+        }
+        assertEquals(slice.length(), slice.clone().getFilePointer());
+
+        in.close();
+        for (IndexInput closed : new IndexInput[] {in, clone, slice, sliceOfSlice}) {
+            try {
+                closed.readByte();
+                fail();
+            } catch (AlreadyClosedException expected) {
+            }
+            try {
+                ((RandomAccessInput) closed).readLong(0);
+                fail();
+            } catch (AlreadyClosedException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testVariableLengthReads() throws Exception {
+        final Random random = new Random(3);
+        final int count = 1000;
+        final int[] ints = new int[count];
+        final long[] longs = new long[count];
+        final long[] zlongs = new long[count];
+        final String[] strings = new String[count];
+        final byte[] data = new byte[count * 64];
+        final ByteArrayDataOutput out = new ByteArrayDataOutput(data);
+        for (int i = 0; i < count; i++) {
+            // spread values over every encoded length
+            ints[i] = random.nextInt() >>> random.nextInt(32);
+            longs[i] = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            zlongs[i] = random.nextLong() >> random.nextInt(64);
+            strings[i] = random.nextBoolean() ? "t\u00e9rm" + i : "";
+            out.writeVInt(ints[i]);
+            out.writeVLong(longs[i]);
+            out.writeZLong(zlongs[i]);
+            out.writeString(strings[i]);
+        }
+        final byte[] written = new byte[out.getPosition()];
+        System.arraycopy(data, 0, written, 0, written.length);
+
+        for (int chunkSize : new int[] {CHUNK, ODD_CHUNK}) {
+            try (IndexInput in = input(written, chunkSize)) {
+                for (int i = 0; i < count; i++) {
+                    assertEquals(ints[i], in.readVInt());
+                    assertEquals(longs[i], in.readVLong());
+                    assertEquals(zlongs[i], in.readZLong());
+                    assertEquals(strings[i], in.readString());
+                }
+                assertEquals(written.length, in.getFilePointer());
+            }
+        }
+    }
+
+    @Test
+    public void testLargerThan2GB() throws Exception {
+        // every chunk is a view of the same bytes, so the file needs no memory
+        final int chunkSize = 1 << 20;
+        final byte[] chunk = new byte[chunkSize];
+        new Random(2).nextBytes(chunk);
+        final ByteBuffer[] buffers = new ByteBuffer[3 * 1024 + 1];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.wrap(chunk, 0, i == buffers.length - 1 ? 0 : chunkSize).slice();
+        }
+        final long length = (long) (buffers.length - 1) * chunkSize;
+        try (IndexInput in = ByteBufferIndexInput.newInstance("test", buffers, length, chunkSize, false)) {
+            final long pos = (2L << 30) + 5 * chunkSize - 3;
+            in.seek(pos);
+            assertEquals(pos, in.getFilePointer());
+            assertEquals(bigEndian(chunk, chunkSize - 3, 3) << 40 | bigEndian(chunk, 0, 5), in.readLong());
+            assertEquals(pos + Long.BYTES, in.getFilePointer());
+            assertEquals(bigEndian(chunk, chunkSize - 3, 3) << 40 | bigEndian(chunk, 0, 5), ((RandomAccessInput) in).readLong(pos));
+
+            final IndexInput slice = in.slice("slice", pos, length - pos);
+            slice.seek(length - pos - 1);
+            assertEquals(chunk[chunkSize - 1], slice.readByte());
+            assertEquals(length - pos, slice.getFilePointer());
+        }
+    }
+}
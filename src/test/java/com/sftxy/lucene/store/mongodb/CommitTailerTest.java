@@ -0,0 +1,85 @@
+package com.sftxy.lucene.store.mongodb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.bson.types.ObjectId;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+public class CommitTailerTest {
+
+    @AfterClass
+    public static void afterClass() {
+        TestMongo.close();
+    }
+
+    private static void commit(IndexWriter writer, int docs) throws Exception {
+        for (int i = 0; i < docs; i++) {
+            Document doc = new Document();
+            doc.add(new StringField("id", new ObjectId().toHexString(), Field.Store.YES));
+            writer.addDocument(doc);
+        }
+        writer.commit();
+    }
+
+    private void testTail(boolean manifest) throws Exception {
+        String prefix = "test-" + new ObjectId();
+        List<Collection<String>> notified = new ArrayList<>();
+        try (MongodbDirectory writerDir = new MongodbDirectory(TestMongo.database(), prefix);
+             MongodbDirectory searcherDir = new MongodbDirectory(TestMongo.database(), prefix)) {
+            writerDir.setManifest(manifest);
+            searcherDir.setManifest(manifest);
+            // no analysis, StringField is not tokenized
+            IndexWriter writer = new IndexWriter(writerDir, new IndexWriterConfig(null));
+            commit(writer, 10);
+
+            DirectoryReader reader = DirectoryReader.open(searcherDir);
+            try (CommitTailer tailer = new CommitTailer(searcherDir, reader.getIndexCommit(),
+                (commit, newFiles) -> notified.add(newFiles))) {
+                assertNull(tailer.poll());
+
+                commit(writer, 5);
+                IndexCommit commit = tailer.poll();
+                assertNotNull(commit);
+                assertEquals(1, notified.size());
+                // only the new segment and commit point
+                for (String file : notified.get(0)) {
+                    assertFalse(file, reader.getIndexCommit().getFileNames().contains(file));
+                }
+                assertTrue(notified.get(0).contains(commit.getSegmentsFileName()));
+
+                DirectoryReader newReader = DirectoryReader.openIfChanged(reader, commit);
+                assertNotNull(newReader);
+                reader.close();
+                reader = newReader;
+                assertEquals(15, reader.numDocs());
+                assertNull(tailer.poll());
+                assertEquals(1, notified.size());
+            } finally {
+                reader.close();
+                writer.close();
+            }
+        }
+    }
+
+    @Test
+    public void testTail() throws Exception {
+        testTail(false);
+    }
+
+    @Test
+    public void testTailManifest() throws Exception {
+        testTail(true);
+    }
+}
@@ -0,0 +1,361 @@
+package com.sftxy.lucene.store.mongodb;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.FilterDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.SuppressForbidden;
+
+/**
+ * End to end benchmark: indexes synthetic documents with an {@link IndexWriter}, reopening a near real time
+ * {@link SearcherManager} and committing along the way, then runs queries on a newly opened reader.
+ *
+ * <p>Reports indexing throughput, flush and merge write rates, commit and reopen latencies, cold (first run)
+ * and warm query latencies, and for {@link MongodbDirectory} the bytes moved to and from MongoDB. The same run
+ * can be done on an {@link FSDirectory} for comparison.</p>
+ *
+ * <p>MongoDB is the one of {@link TestMongo}: a local mongod given by {@code -Dtests.mongodb.uri}, or an
+ * in-memory stand-in started in this JVM, whose numbers only make sense relative to each other.</p>
+ */
+public class IndexBenchmark {
+
+    private static final int VOCABULARY = 20000;
+    private static final int WORDS_PER_DOC = 40;
+
+    @SuppressForbidden(reason = "System.out required: command line tool")
+    public static void main(String... args) throws Exception {
+        if (args.length < 1 || args.length > 5) {
+            System.out.println("Usage: java com.sftxy.lucene.store.mongodb.IndexBenchmark directory [docs [refreshEvery [commitEvery [queries]]]]\n" +
+                    "\n" +
+                    "  directory = mongodb, fs, or both to compare them\n" +
+                    "  docs = number of documents to index, default 200000\n" +
+                    "  refreshEvery = documents between two NRT reopens, default 5000\n" +
+                    "  commitEvery = documents between two commits, default 50000\n" +
+                    "  queries = number of distinct queries, default 1000\n" +
+                    "\n" +
+                    "Uses the MongoDB given by -Dtests.mongodb.uri, e.g. mongodb://127.0.0.1:27017/bench,\n" +
+                    "or else an in-memory stand-in started in this JVM.");
+            System.exit(1);
+        }
+
+        int arg = 0;
+        final String directory = args[arg++];
+        final int docs = args.length > arg ? Integer.parseInt(args[arg++]) : 200000;
+        final int refreshEvery = args.length > arg ? Integer.parseInt(args[arg++]) : 5000;
+        final int commitEvery = args.length > arg ? Integer.parseInt(args[arg++]) : 50000;
+        final int queries = args.length > arg ? Integer.parseInt(args[arg++]) : 1000;
+
+        final List<Result> results = new ArrayList<>();
+        if (directory.equals("fs") || directory.equals("both")) {
+            Path path = Files.createTempDirectory("IndexBenchmark");
+            try {
+                results.add(run("fs", () -> FSDirectory.open(path), docs, refreshEvery, commitEvery, queries));
+            } finally {
+                IOUtils.rm(path);
+            }
+        }
+        if (directory.equals("mongodb") || directory.equals("both")) {
+            final String prefix = "IndexBenchmark-" + System.currentTimeMillis();
+            try {
+                results.add(run("mongodb" + (TestMongo.isStandIn() ? " (stand-in)" : ""),
+                    () -> new MongodbDirectory(TestMongo.database(), prefix), docs, refreshEvery, commitEvery, queries));
+            } finally {
+                TestMongo.close();
+            }
+        }
+        if (results.isEmpty()) {
+            throw new IllegalArgumentException("Unknown directory: " + directory);
+        }
+
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-28s", "") + format(results, r -> r.name));
+        for (String line : Result.LINES) {
+            System.out.println(String.format(Locale.ROOT, "%-28s", line) + format(results, r -> r.values.get(line)));
+        }
+    }
+
+    interface DirectoryFactory {
+        Directory open() throws IOException;
+    }
+
+    interface Column {
+        String get(Result result);
+    }
+
+    private static String format(List<Result> results, Column column) {
+        StringBuilder sb = new StringBuilder();
+        for (Result result : results) {
+            String value = column.get(result);
+            sb.append(String.format(Locale.ROOT, "%24s", value == null ? "-" : value));
+        }
+        return sb.toString();
+    }
+
+    @SuppressForbidden(reason = "System.out required: command line tool")
+    private static Result run(String name, DirectoryFactory factory, int docs, int refreshEvery, int commitEvery,
+                              int queries) throws IOException {
+        System.out.println("Benchmarking " + name + "...");
+        final Result result = new Result(name);
+        final Random random = new Random(42);
+
+        try (CountingDirectory dir = new CountingDirectory(factory.open())) {
+            final List<Long> commits = new ArrayList<>();
+            final List<Long> reopens = new ArrayList<>();
+
+            final long indexStart = System.nanoTime();
+            try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig(new WhitespaceAnalyzer()));
+                 SearcherManager manager = new SearcherManager(writer, null)) {
+                for (int i = 0; i < docs; i++) {
+                    writer.addDocument(document(i, random));
+                    if ((i + 1) % refreshEvery == 0) {
+                        long start = System.nanoTime();
+                        manager.maybeRefreshBlocking();
+                        reopens.add(System.nanoTime() - start);
+                    }
+                    if ((i + 1) % commitEvery == 0) {
+                        long start = System.nanoTime();
+                        writer.commit();
+                        commits.add(System.nanoTime() - start);
+                    }
+                }
+                long start = System.nanoTime();
+                writer.commit();
+                commits.add(System.nanoTime() - start);
+            }
+            final long indexNanos = System.nanoTime() - indexStart;
+
+            result.put("docs/s indexed", String.format(Locale.ROOT, "%.0f", docs / (indexNanos / 1e9)));
+            result.put("flush write MB/s", rate(dir.flushBytes.get(), dir.flushNanos.get()));
+            result.put("merge write MB/s", rate(dir.mergeBytes.get(), dir.mergeNanos.get()));
+            result.putLatencies("commit ms", commits);
+            result.putLatencies("reopen ms", reopens);
+
+            // search a newly opened reader: the first pass is cold, the next ones warm
+            MongodbDirectory mongodb = FilterDirectory.unwrap(dir) instanceof MongodbDirectory ? (MongodbDirectory) FilterDirectory.unwrap(dir) : null;
+            if (mongodb != null) {
+                mongodb.getChunkCache().clear();
+            }
+            final List<Query> querySet = queries(queries, new Random(7));
+            final List<Long> cold = new ArrayList<>();
+            final List<Long> warm = new ArrayList<>();
+            final long openStart = System.nanoTime();
+            try (DirectoryReader reader = DirectoryReader.open(dir)) {
+                result.put("reader open ms", String.format(Locale.ROOT, "%.1f", (System.nanoTime() - openStart) / 1e6));
+                IndexSearcher searcher = new IndexSearcher(reader);
+                for (int pass = 0; pass < 4; pass++) {
+                    for (Query query : querySet) {
+                        long start = System.nanoTime();
+                        searcher.search(query, 10);
+                        (pass == 0 ? cold : warm).add(System.nanoTime() - start);
+                    }
+                }
+            }
+            result.putLatencies("cold query ms", cold);
+            result.putLatencies("warm query ms", warm);
+
+            if (mongodb != null) {
+                MongodbMetrics metrics = mongodb.getMetrics();
+                result.put("MB written to MongoDB", String.format(Locale.ROOT, "%.1f", metrics.getBytesWritten() / 1e6));
+                result.put("MB read from MongoDB", String.format(Locale.ROOT, "%.1f", metrics.getBytesFetched() / 1e6));
+                result.put("chunk queries", Long.toString(metrics.getChunkQueries().getCount()));
+                result.put("metadata queries", Long.toString(metrics.getMetadataQueries().getCount()));
+            }
+        }
+        return result;
+    }
+
+    private static Document document(int id, Random random) {
+        Document doc = new Document();
+        doc.add(new StringField("id", Integer.toString(id), Field.Store.YES));
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < WORDS_PER_DOC; i++) {
+            body.append(word(random)).append(' ');
+        }
+        doc.add(new TextField("body", body.toString(), Field.Store.YES));
+        doc.add(new NumericDocValuesField("timestamp", id));
+        return doc;
+    }
+
+    private static List<Query> queries(int count, Random random) {
+        List<Query> queries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (i % 2 == 0) {
+                queries.add(new TermQuery(new Term("body", word(random))));
+            } else {
+                BooleanQuery.Builder builder = new BooleanQuery.Builder();
+                builder.add(new TermQuery(new Term("body", word(random))), BooleanClause.Occur.MUST);
+                builder.add(new TermQuery(new Term("body", word(random))), BooleanClause.Occur.MUST);
+                queries.add(builder.build());
+            }
+        }
+        return queries;
+    }
+
+    /**
+     * Returns a word of a skewed vocabulary, low ranks being much more frequent.
+     */
+    private static String word(Random random) {
+        double r = random.nextDouble();
+        return "w" + (int) (VOCABULARY * r * r * r);
+    }
+
+    private static String rate(long bytes, long nanos) {
+        return nanos == 0 ? "-" : String.format(Locale.ROOT, "%.1f", bytes / 1e6 / (nanos / 1e9));
+    }
+
+    private static final class Result {
+        static final String[] LINES = {
+            "docs/s indexed", "flush write MB/s", "merge write MB/s",
+            "commit ms p50", "commit ms p99", "reopen ms p50", "reopen ms p99", "reader open ms",
+            "cold query ms p50", "cold query ms p90", "cold query ms p99",
+            "warm query ms p50", "warm query ms p90", "warm query ms p99",
+            "MB written to MongoDB", "MB read from MongoDB", "chunk queries", "metadata queries"
+        };
+
+        final String name;
+        final Map<String, String> values = new HashMap<>();
+
+        Result(String name) {
+            this.name = name;
+        }
+
+        void put(String line, String value) {
+            values.put(line, value);
+        }
+
+        void putLatencies(String line, List<Long> nanos) {
+            if (nanos.isEmpty()) {
+                return;
+            }
+            long[] sorted = new long[nanos.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = nanos.get(i);
+            }
+            Arrays.sort(sorted);
+            for (int percentile : new int[] {50, 90, 99}) {
+                long value = sorted[Math.min(sorted.length - 1, (int) Math.ceil(percentile / 100.0 * sorted.length) - 1)];
+                put(line + " p" + percentile, String.format(Locale.ROOT, "%.2f", value / 1e6));
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes written by flushes and merges, and the time their outputs were open.
+     */
+    private static final class CountingDirectory extends FilterDirectory {
+        final AtomicLong flushBytes = new AtomicLong();
+        final AtomicLong flushNanos = new AtomicLong();
+        final AtomicLong mergeBytes = new AtomicLong();
+        final AtomicLong mergeNanos = new AtomicLong();
+
+        CountingDirectory(Directory in) {
+            super(in);
+        }
+
+        @Override
+        public IndexOutput createOutput(String name, IOContext context) throws IOException {
+            final IndexOutput out = in.createOutput(name, context);
+            final AtomicLong bytes;
+            final AtomicLong nanos;
+            if (context.context == IOContext.Context.FLUSH) {
+                bytes = flushBytes;
+                nanos = flushNanos;
+            } else if (context.context == IOContext.Context.MERGE) {
+                bytes = mergeBytes;
+                nanos = mergeNanos;
+            } else {
+                return out;
+            }
+            final long start = System.nanoTime();
+            return new IndexOutput("CountingIndexOutput(" + out + ")") {
+                @Override
+                public void close() throws IOException {
+                    long length = out.getFilePointer();
+                    out.close();
+                    bytes.addAndGet(length);
+                    nanos.addAndGet(System.nanoTime() - start);
+                }
+
+                @Override
+                public long getFilePointer() {
+                    return out.getFilePointer();
+                }
+
+                @Override
+                public long getChecksum() throws IOException {
+                    return out.getChecksum();
+                }
+
+                @Override
+                public void writeByte(byte b) throws IOException {
+                    out.writeByte(b);
+                }
+
+                @Override
+                public void writeBytes(byte[] b, int offset, int length) throws IOException {
+                    out.writeBytes(b, offset, length);
+                }
+            };
+        }
+    }
+
+    /**
+     * Splits text on whitespace, lucene-core has no analyzer of its own.
+     */
+    private static final class WhitespaceAnalyzer extends Analyzer {
+        @Override
+        protected TokenStreamComponents createComponents(String fieldName) {
+            return new TokenStreamComponents(new Tokenizer() {
+                private final CharTermAttribute term = addAttribute(CharTermAttribute.class);
+
+                @Override
+                public boolean incrementToken() throws IOException {
+                    clearAttributes();
+                    int c;
+                    while ((c = input.read()) != -1 && Character.isWhitespace(c)) {
+                        // skip
+                    }
+                    if (c == -1) {
+                        return false;
+                    }
+                    do {
+                        term.append((char) c);
+                    } while ((c = input.read()) != -1 && !Character.isWhitespace(c));
+                    return true;
+                }
+            });
+        }
+    }
+}
@@ -5,9 +5,6 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Collections;
 import java.util.Random;
 
 import org.apache.lucene.store.FSLockFactory;
@@ -17,11 +14,6 @@ import org.apache.lucene.store.LockObtainFailedException;
 import org.apache.lucene.store.VerifyingLockFactory;
 import org.apache.lucene.util.SuppressForbidden;
 
-import com.mongodb.MongoClient;
-import com.mongodb.MongoCredential;
-import com.mongodb.ServerAddress;
-import com.mongodb.client.MongoDatabase;
-
 public class LockStressTest {
 
     static final String LOCK_FILE_NAME = "test.lock";
@@ -36,7 +28,7 @@ public class LockStressTest {
                     "  verifierHost = hostname that LockVerifyServer is listening on\n" +
                     "  verifierPort = port that LockVerifyServer is listening on\n" +
                     "  lockFactoryClassName = primary FSLockFactory class that we will use\n" +
-                    "  lockDirName = path to the lock directory\n" +
+                    "  lockDirName = prefix of the MongodbDirectory holding the lock\n" +
                     "  sleepTimeMS = milliseconds to pause betweeen each lock obtain/release\n" +
                     "  count = number of locking tries\n" +
                     "\n" +
@@ -44,7 +36,11 @@ public class LockStressTest {
                     "unique ID, and each pointing to the same lock directory, to verify\n" +
                     "that locking is working correctly.\n" +
                     "\n" +
-                    "Make sure you are first running LockVerifyServer.");
+                    "Make sure you are first running LockVerifyServer.\n" +
+                    "\n" +
+                    "Processes share locks through the MongoDB given by -Dtests.mongodb.uri, e.g.\n" +
+                    "mongodb://127.0.0.1:27017/test. Without it, an in-memory stand-in only shared\n" +
+                    "by the clients running in this JVM is used.");
             System.exit(1);
         }
 
@@ -59,17 +55,14 @@ public class LockStressTest {
         final String verifierHost = args[arg++];
         final int verifierPort = Integer.parseInt(args[arg++]);
         final String lockFactoryClassName = args[arg++];
-        final Path lockDirPath = Paths.get(args[arg++]);
+        final String lockDirName = args[arg++];
         final int sleepTimeMS = Integer.parseInt(args[arg++]);
         final int count = Integer.parseInt(args[arg++]);
 
         final LockFactory lockFactory = getNewLockFactory(lockFactoryClassName);
         // we test the lock factory directly, so we don't need it on the directory itsself (the directory is just for testing)
         //final FSDirectory lockDir = new SimpleFSDirectory(lockDirPath, NoLockFactory.INSTANCE);
-        MongoCredential credential = MongoCredential.createCredential("test", "test", new char[]{'t', 'e', 's', 't'});
-        MongoClient client = new MongoClient(new ServerAddress("127.0.0.1"), Collections.singletonList(credential));
-        MongoDatabase db = client.getDatabase("test");
-        MongodbDirectory lockDir = new MongodbDirectory(db, "prefix");
+        MongodbDirectory lockDir = new MongodbDirectory(TestMongo.database(), lockDirName);
         final InetSocketAddress addr = new InetSocketAddress(verifierHost, verifierPort);
         System.out.println("Connecting to server " + addr +
                 " and registering as client " + myID + "...");
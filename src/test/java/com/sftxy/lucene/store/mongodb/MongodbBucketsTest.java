@@ -0,0 +1,72 @@
+package com.sftxy.lucene.store.mongodb;
+
+import static com.mongodb.client.model.Filters.*;
+import static org.junit.Assert.*;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.bson.types.ObjectId;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import com.mongodb.client.MongoDatabase;
+
+public class MongodbBucketsTest {
+
+    @AfterClass
+    public static void afterClass() {
+        TestMongo.close();
+    }
+
+    @Test
+    public void testBucketNaming() {
+        assertEquals("fs", BucketNaming.SHARED.bucket("a/b"));
+        assertEquals("fs_a_b-c", BucketNaming.PER_PREFIX.bucket("a/b-c"));
+        String longName = BucketNaming.PER_PREFIX.bucket(new String(new char[100]).replace('\0', 'x'));
+        assertTrue(longName.length() <= 64);
+        assertNotEquals(longName, BucketNaming.PER_PREFIX.bucket(new String(new char[101]).replace('\0', 'x')));
+        String group = BucketNaming.groups(4).bucket("tenant");
+        assertTrue(group.matches("fs_[0-3]"));
+        assertEquals(group, BucketNaming.groups(4).bucket("tenant"));
+    }
+
+    @Test
+    public void testMigrate() throws Exception {
+        MongoDatabase db = TestMongo.database();
+        String prefix = "test-" + new ObjectId();
+        BucketNaming target = BucketNaming.of("fs_migrated");
+        try (MongodbDirectory dir = new MongodbDirectory(db, prefix)) {
+            dir.setManifest(true);
+            dir.setRandomFileIds(true);
+            dir.setChunkSizePolicy(new ChunkSizePolicy() {
+                @Override
+                public int chunkSize(String name, IOContext context) {
+                    return 16;
+                }
+            });
+            for (int i = 0; i < 3; i++) {
+                try (IndexOutput out = dir.createOutput("_" + i + ".cfs", IOContext.DEFAULT)) {
+                    for (int j = 0; j < 100; j++) {
+                        out.writeInt(i * 100 + j);
+                    }
+                }
+            }
+        }
+
+        assertEquals(3, MongodbBuckets.migrate(db, prefix, BucketNaming.SHARED, target));
+
+        assertEquals(0, db.getCollection("fs.files").count(regex("filename", "^" + prefix + "/")));
+        assertNull(db.getCollection("fs.manifests").find(eq("_id", prefix)).first());
+        try (MongodbDirectory dir = new MongodbDirectory(db, prefix, target)) {
+            assertEquals("fs_migrated", dir.getBucketName());
+            dir.setManifest(true);
+            assertEquals(3, dir.listAll().length);
+            try (IndexInput in = dir.openInput("_2.cfs", IOContext.DEFAULT)) {
+                for (int j = 0; j < 100; j++) {
+                    assertEquals(200 + j, in.readInt());
+                }
+            }
+        }
+    }
+}
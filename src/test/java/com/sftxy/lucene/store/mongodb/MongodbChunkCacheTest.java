@@ -0,0 +1,148 @@
+package com.sftxy.lucene.store.mongodb;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonObjectId;
+import org.bson.BsonValue;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+public class MongodbChunkCacheTest {
+
+    private static final int CHUNK = 1024;
+
+    @Test
+    public void testHitMissAndDedup() throws Exception {
+        MongodbChunkCache cache = new MongodbChunkCache(16L * 64 * CHUNK);
+        BsonValue id = new BsonObjectId(new ObjectId());
+
+        assertNull(cache.get(id, 0, false));
+        Chunk first = chunk(false);
+        assertSame(first, cache.putIfAbsent(id, 0, first));
+        assertSame(first, cache.putIfAbsent(id, 0, chunk(false)));
+        assertSame(first, cache.get(id, 0, false));
+
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(CHUNK, cache.getBytes());
+    }
+
+    @Test
+    public void testHeapAndDirectCopiesAreDistinct() throws Exception {
+        MongodbChunkCache cache = new MongodbChunkCache(16L * 64 * CHUNK);
+        BsonValue id = new BsonObjectId(new ObjectId());
+
+        Chunk heap = chunk(false);
+        assertSame(heap, cache.putIfAbsent(id, 0, heap));
+        assertNull(cache.get(id, 0, true));
+        Chunk direct = chunk(true);
+        assertSame(direct, cache.putIfAbsent(id, 0, direct));
+        assertSame(heap, cache.get(id, 0, false));
+        assertSame(direct, cache.get(id, 0, true));
+
+        cache.invalidate(id);
+        assertEquals(0, cache.getChunkCount());
+    }
+
+    @Test
+    public void testBoundedAndScanResistant() throws Exception {
+        long maxBytes = 16L * 64 * CHUNK;
+        MongodbChunkCache cache = new MongodbChunkCache(maxBytes);
+        BsonValue hot = new BsonObjectId(new ObjectId());
+        BsonValue scan = new BsonObjectId(new ObjectId());
+
+        // hot chunks are read twice, so they get promoted
+        for (int n = 0; n < 64; n++) {
+            cache.putIfAbsent(hot, n, chunk(false));
+            assertNotNull(cache.get(hot, n, false));
+        }
+
+        // a scan much larger than the cache only goes through probation
+        for (int n = 0; n < 10000; n++) {
+            cache.putIfAbsent(scan, n, chunk(false));
+        }
+
+        assertTrue(cache.getBytes() <= maxBytes);
+        assertTrue(cache.getEvictionCount() > 0);
+        for (int n = 0; n < 64; n++) {
+            assertNotNull("hot chunk " + n + " evicted by scan", cache.get(hot, n, false));
+        }
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        MongodbChunkCache cache = new MongodbChunkCache(16L * 64 * CHUNK);
+        BsonValue deleted = new BsonObjectId(new ObjectId());
+        BsonValue kept = new BsonObjectId(new ObjectId());
+        for (int n = 0; n < 8; n++) {
+            cache.putIfAbsent(deleted, n, chunk(false));
+            cache.putIfAbsent(kept, n, chunk(false));
+        }
+
+        cache.invalidate(deleted);
+
+        assertEquals(8, cache.getChunkCount());
+        assertEquals(8 * CHUNK, cache.getBytes());
+        assertNull(cache.get(deleted, 0, false));
+        assertNotNull(cache.get(kept, 0, false));
+    }
+
+    @Test
+    public void testInvalidatedChunkStaysReadableWhileHeld() throws Exception {
+        MongodbChunkCache cache = new MongodbChunkCache(16L * 64 * CHUNK);
+        BsonValue id = new BsonObjectId(new ObjectId());
+
+        // held by a table, which still reads it after it is dropped from the cache
+        Chunk held = cache.putIfAbsent(id, 0, chunk(true));
+        cache.invalidate(id);
+        assertEquals(0, cache.getBytes());
+        assertEquals(0, held.buffer.getInt(CHUNK - 4));
+
+        held.release();
+    }
+
+    @Test
+    public void testMemoryBudget() throws Exception {
+        MongodbChunkCache cache = new MongodbChunkCache(16L * 64 * CHUNK);
+        MemoryBudget budget = cache.budget;
+        cache.setMemoryBudget(4 * CHUNK);
+        BsonValue id = new BsonObjectId(new ObjectId());
+
+        // two chunks held by an input, two only cached
+        Chunk[] held = new Chunk[2];
+        for (int n = 0; n < 4; n++) {
+            assertTrue(budget.tryReserve(CHUNK));
+            Chunk chunk = cache.putIfAbsent(id, n, Chunk.of(new byte[CHUNK], false, budget));
+            if (n < 2) {
+                held[n] = chunk;
+            } else {
+                chunk.release();
+            }
+        }
+        assertEquals(4 * CHUNK, cache.getMemoryBytes());
+
+        // evicts the cached chunks, but cannot free the held ones
+        assertTrue(budget.tryReserve(2 * CHUNK));
+        assertEquals(4 * CHUNK, cache.getMemoryBytes());
+        assertFalse(budget.tryReserve(CHUNK));
+        try {
+            budget.reserve(CHUNK, TimeUnit.MILLISECONDS.toNanos(10));
+            fail("reserved over budget");
+        } catch (IOException expected) {
+        }
+
+        budget.release(2 * CHUNK);
+        held[0].release();
+        cache.clear();
+        assertEquals(CHUNK, cache.getMemoryBytes());
+        held[1].release();
+        assertEquals(0, cache.getMemoryBytes());
+    }
+
+    private static Chunk chunk(boolean direct) {
+        return Chunk.of(new byte[CHUNK], direct);
+    }
+}
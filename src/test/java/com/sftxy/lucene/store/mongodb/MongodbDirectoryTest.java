@@ -0,0 +1,344 @@
+package com.sftxy.lucene.store.mongodb;
+
+import static com.mongodb.client.model.Filters.*;
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.IOUtils;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import com.mongodb.MongoException;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.gridfs.model.GridFSFile;
+
+public class MongodbDirectoryTest {
+
+    @AfterClass
+    public static void afterClass() {
+        TestMongo.close();
+    }
+
+    private static String newPrefix() {
+        return "test-" + new ObjectId();
+    }
+
+    private static void write(MongodbDirectory dir, String name) throws Exception {
+        try (IndexOutput out = dir.createOutput(name, IOContext.DEFAULT)) {
+            out.writeString(name);
+        }
+    }
+
+    private static long barriers(String prefix) {
+        Document doc = TestMongo.database().getCollection("fs.syncs").find(eq("_id", prefix)).first();
+        return doc == null ? 0 : ((Number) doc.get("barriers")).longValue();
+    }
+
+    @Test
+    public void testSyncGroupsWrites() throws Exception {
+        String prefix = newPrefix();
+        try (MongodbDirectory dir = new MongodbDirectory(TestMongo.database(), prefix)) {
+            write(dir, "_0.cfs");
+            write(dir, "_0.si");
+            write(dir, "_1.cfs");
+            dir.sync(Arrays.asList("_0.cfs", "_0.si"));
+            assertEquals(1, barriers(prefix));
+            assertEquals(1, dir.getMetrics().getSyncs().getCount());
+
+            // the barrier covered every file written before it
+            dir.sync(Collections.singleton("_1.cfs"));
+            assertEquals(1, barriers(prefix));
+
+            write(dir, "pending_segments_1");
+            dir.renameFile("pending_segments_1", "segments_1");
+            assertEquals(2, barriers(prefix));
+            dir.sync(Collections.singleton("segments_1"));
+            assertEquals(2, barriers(prefix));
+
+            // other renames wait for the next sync
+            write(dir, "_2.cfs");
+            dir.renameFile("_2.cfs", "_3.cfs");
+            assertEquals(2, barriers(prefix));
+            dir.sync(Collections.singleton("_3.cfs"));
+            assertEquals(3, barriers(prefix));
+        }
+    }
+
+    @Test
+    public void testDeleteInBackground() throws Exception {
+        String prefix = newPrefix();
+        MongodbDirectory dir = new MongodbDirectory(TestMongo.database(), prefix);
+        dir.setManifest(true);
+        for (int i = 0; i < 10; i++) {
+            write(dir, "_" + i + ".cfs");
+        }
+        for (int i = 0; i < 9; i++) {
+            dir.deleteFile("_" + i + ".cfs");
+        }
+        // deleted files are gone at once, even if still in fs.files
+        assertArrayEquals(new String[] {"_9.cfs"}, dir.listAll());
+        try {
+            dir.fileLength("_0.cfs");
+            fail();
+        } catch (NoSuchFileException expected) {
+        }
+        try {
+            dir.deleteFile("_0.cfs");
+            fail();
+        } catch (NoSuchFileException expected) {
+        }
+        dir.close();
+
+        assertEquals(1, TestMongo.database().getCollection("fs.files").count(regex("filename", "^" + prefix + "/")));
+        assertEquals(9, dir.getMetrics().getFilesDeleted());
+        try (MongodbDirectory reopened = new MongodbDirectory(TestMongo.database(), prefix)) {
+            reopened.setManifest(true);
+            assertArrayEquals(new String[] {"_9.cfs"}, reopened.listAll());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static MongoCollection<Document> failingDeletes(MongoCollection<Document> collection) {
+        return (MongoCollection<Document>) Proxy.newProxyInstance(MongodbDirectoryTest.class.getClassLoader(),
+            new Class<?>[] {MongoCollection.class}, (proxy, method, args) -> {
+                if (method.getName().equals("deleteMany")) {
+                    throw new MongoException("deleteMany failed");
+                }
+                return method.invoke(collection, args);
+            });
+    }
+
+    private static GridFSFile deleteWith(FileCatalog catalog, DeleteQueue deletes, String name) throws Exception {
+        GridFSFile file = catalog.get(name);
+        catalog.delete(name, file);
+        deletes.add(file);
+        deletes.flush();
+        return file;
+    }
+
+    @Test
+    public void testFailedDeleteIsListedAgain() throws Exception {
+        String prefix = newPrefix();
+        try (MongodbDirectory writer = new MongodbDirectory(TestMongo.database(), prefix)) {
+            writer.setManifest(true);
+            write(writer, "_0.cfs");
+        }
+        MongoCollection<Document> files = TestMongo.database().getCollection("fs.files");
+        MongoCollection<Document> chunks = TestMongo.database().getCollection("fs.chunks");
+        MongodbMetrics metrics = new MongodbMetrics(MongodbChunkCache.INSTANCE);
+        FileCatalog catalog = new FileCatalog(files, prefix, metrics);
+        Manifest manifest = new Manifest(TestMongo.database().getCollection("fs.manifests"), prefix);
+        catalog.setManifest(manifest);
+        DeleteQueue deletes = new DeleteQueue(failingDeletes(files), chunks, catalog, MongodbChunkCache.INSTANCE,
+            metrics, Runnable::run, 16, 16);
+
+        GridFSFile file = deleteWith(catalog, deletes, "_0.cfs");
+        assertEquals(1, metrics.getDeleteFailures());
+        // nothing was deleted, and the file is listed again so that Lucene can delete it again
+        assertEquals(1, files.count(eq("_id", file.getId())));
+        assertTrue(chunks.count(eq("files_id", file.getId())) > 0);
+        assertTrue(manifest.read().containsKey("_0.cfs"));
+        assertTrue(catalog.refresh().containsKey("_0.cfs"));
+    }
+
+    @Test
+    public void testFailedChunkDeleteLeavesChunksBehind() throws Exception {
+        String prefix = newPrefix();
+        try (MongodbDirectory writer = new MongodbDirectory(TestMongo.database(), prefix)) {
+            writer.setManifest(true);
+            write(writer, "_0.cfs");
+        }
+        MongoCollection<Document> files = TestMongo.database().getCollection("fs.files");
+        MongoCollection<Document> chunks = TestMongo.database().getCollection("fs.chunks");
+        MongodbMetrics metrics = new MongodbMetrics(MongodbChunkCache.INSTANCE);
+        FileCatalog catalog = new FileCatalog(files, prefix, metrics);
+        Manifest manifest = new Manifest(TestMongo.database().getCollection("fs.manifests"), prefix);
+        catalog.setManifest(manifest);
+        DeleteQueue deletes = new DeleteQueue(files, failingDeletes(chunks), catalog, MongodbChunkCache.INSTANCE,
+            metrics, Runnable::run, 16, 16);
+
+        GridFSFile file = deleteWith(catalog, deletes, "_0.cfs");
+        assertEquals(1, metrics.getDeleteFailures());
+        // the file is gone for good, only its chunks are left behind
+        assertEquals(0, files.count(eq("_id", file.getId())));
+        assertTrue(chunks.count(eq("files_id", file.getId())) > 0);
+        assertFalse(manifest.read().containsKey("_0.cfs"));
+        assertFalse(catalog.refresh().containsKey("_0.cfs"));
+        assertTrue(catalog.query().isEmpty());
+    }
+
+    @Test
+    public void testMirrorReusedAfterRestart() throws Exception {
+        String prefix = newPrefix();
+        Path mirror = Files.createTempDirectory("mirror");
+        AtomicLong queries = new AtomicLong();
+        try {
+            try (MongodbDirectory dir = new MongodbDirectory(TestMongo.countingChunkQueries(queries), prefix)) {
+                dir.setMirror(mirror);
+                write(dir, "_0.cfs");
+                write(dir, "_1.cfs");
+                for (String name : new String[] {"_0.cfs", "_1.cfs"}) {
+                    dir.openInput(name, IOContext.READONCE).close();
+                }
+                assertEquals(2, queries.get());
+            }
+            Files.write(mirror.resolve("_9.cfs"), new byte[] {1, 2, 3});
+
+            try (MongodbDirectory dir = new MongodbDirectory(TestMongo.countingChunkQueries(queries), prefix)) {
+                dir.setMirror(mirror);
+                // files unknown to fs.files are removed
+                assertFalse(Files.exists(mirror.resolve("_9.cfs")));
+                try (IndexInput in = dir.openInput("_0.cfs", IOContext.READONCE)) {
+                    assertEquals("_0.cfs", in.readString());
+                }
+                dir.renameFile("_1.cfs", "_2.cfs");
+                assertFalse(Files.exists(mirror.resolve("_1.cfs")));
+                try (IndexInput in = dir.openInput("_2.cfs", IOContext.READONCE)) {
+                    assertEquals("_1.cfs", in.readString());
+                }
+                assertEquals(2, queries.get());
+
+                dir.deleteFile("_0.cfs");
+                assertFalse(Files.exists(mirror.resolve("_0.cfs")));
+            }
+        } finally {
+            IOUtils.rm(mirror);
+        }
+    }
+
+    @Test
+    public void testManifestGeneration() throws Exception {
+        String prefix = newPrefix();
+        try (MongodbDirectory dir = new MongodbDirectory(TestMongo.database(), prefix)) {
+            dir.setManifest(true);
+            assertNull(dir.getLatestSegmentsFileName());
+            write(dir, "pending_segments_1");
+            assertNull(dir.getLatestSegmentsFileName());
+            dir.renameFile("pending_segments_1", "segments_1");
+            assertEquals("segments_1", dir.getLatestSegmentsFileName());
+            write(dir, "pending_segments_2");
+            dir.renameFile("pending_segments_2", "segments_2");
+            dir.deleteFile("segments_1");
+            assertEquals("segments_2", dir.getLatestSegmentsFileName());
+            assertArrayEquals(new String[] {"segments_2"}, dir.listAll());
+        }
+
+        // files changed without the manifest are only seen once it is rebuilt
+        try (MongodbDirectory dir = new MongodbDirectory(TestMongo.database(), prefix)) {
+            write(dir, "pending_segments_3");
+            dir.renameFile("pending_segments_3", "segments_3");
+        }
+        try (MongodbDirectory dir = new MongodbDirectory(TestMongo.database(), prefix)) {
+            dir.setManifest(true);
+            assertEquals("segments_2", dir.getLatestSegmentsFileName());
+            dir.rebuildManifest();
+            assertEquals("segments_3", dir.getLatestSegmentsFileName());
+            assertArrayEquals(new String[] {"segments_2", "segments_3"}, dir.listAll());
+        }
+    }
+
+    @Test
+    public void testFileWithoutMd5() throws Exception {
+        String prefix = newPrefix();
+        // uploaded by a driver which no longer writes md5
+        ObjectId id = new ObjectId();
+        TestMongo.database().getCollection("fs.chunks").insertOne(new Document("files_id", id).append("n", 0)
+            .append("data", new Binary(new byte[] {1, 2, 3})));
+        TestMongo.database().getCollection("fs.files").insertOne(new Document("_id", id)
+            .append("filename", prefix + "/_0.cfs").append("length", 3L).append("chunkSize", 255 * 1024)
+            .append("uploadDate", new Date()));
+        try (MongodbDirectory dir = new MongodbDirectory(TestMongo.database(), prefix)) {
+            dir.setManifest(true);
+            dir.rebuildManifest();
+            assertArrayEquals(new String[] {"_0.cfs"}, dir.listAll());
+            dir.renameFile("_0.cfs", "_1.cfs");
+            try (IndexInput in = dir.openInput("_1.cfs", IOContext.READONCE)) {
+                assertEquals(3, in.length());
+                assertEquals(1, in.readByte());
+            }
+        }
+        Document manifest = TestMongo.database().getCollection("fs.manifests").find(eq("_id", prefix)).first();
+        assertFalse(((Document) manifest.get("files", Document.class).get("_1\uFF0Ecfs")).containsKey("md5"));
+    }
+
+    @Test
+    public void testWarm() throws Exception {
+        AtomicLong queries = new AtomicLong();
+        try (MongodbDirectory dir = new MongodbDirectory(TestMongo.countingChunkQueries(queries), newPrefix())) {
+            dir.setWarmParallelism(2);
+            for (int i = 0; i < 4; i++) {
+                write(dir, "_" + i + ".cfs");
+            }
+            List<String> names = Arrays.asList("_0.cfs", "_1.cfs", "_2.cfs", "_3.cfs");
+            dir.warm(names).get(10, TimeUnit.SECONDS);
+            assertEquals(4, queries.get());
+
+            // served from the chunk cache
+            for (String name : names) {
+                try (IndexInput in = dir.openInput(name, IOContext.READONCE)) {
+                    assertEquals(name, in.readString());
+                }
+            }
+            assertEquals(4, queries.get());
+
+            try {
+                dir.warm(Arrays.asList("_0.cfs", "_9.cfs")).get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause().getCause() instanceof NoSuchFileException);
+            }
+        }
+    }
+
+    @Test
+    public void testSecondaryReadPreferences() throws Exception {
+        String prefix = newPrefix();
+        try (MongodbDirectory writer = new MongodbDirectory(TestMongo.database(), prefix)) {
+            write(writer, "_0.si");
+        }
+        try (MongodbDirectory dir = new MongodbDirectory(TestMongo.database(), prefix)) {
+            dir.setMetadataReadPreference(ReadPreference.secondaryPreferred());
+            dir.setChunkReadPreference(ReadPreference.secondaryPreferred());
+            try (IndexInput in = dir.openInput("_0.si", IOContext.READONCE)) {
+                assertEquals("_0.si", in.readString());
+            }
+            try {
+                dir.openInput("_1.si", IOContext.READONCE);
+                fail();
+            } catch (NoSuchFileException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testWriteConcernMustBeAcknowledged() throws Exception {
+        try (MongodbDirectory dir = new MongodbDirectory(TestMongo.database(), newPrefix())) {
+            try {
+                dir.setWriteConcern(WriteConcern.UNACKNOWLEDGED);
+                fail();
+            } catch (IllegalArgumentException expected) {
+            }
+            dir.setSyncWriteConcern(WriteConcern.JOURNALED);
+            assertEquals(WriteConcern.JOURNALED, dir.getSyncWriteConcern());
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.sftxy.lucene.store.mongodb;
+
+import static com.mongodb.client.model.Filters.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.bson.types.ObjectId;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+
+public class MongodbIndexInputTest {
+
+    private static final int CHUNK = 256;
+
+    @AfterClass
+    public static void afterClass() {
+        TestMongo.close();
+    }
+
+    private static String newPrefix() {
+        return "test-" + new ObjectId();
+    }
+
+    /**
+     * Uploads a file of random bytes as plain GridFS chunks of {@link #CHUNK} bytes.
+     */
+    private static byte[] upload(String prefix, String name, int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        GridFSBuckets.create(TestMongo.database()).uploadFromStream(prefix + "/" + name,
+            new ByteArrayInputStream(bytes), new GridFSUploadOptions().chunkSizeBytes(CHUNK));
+        return bytes;
+    }
+
+    @Test
+    public void testPagedFetchesOnAccess() throws Exception {
+        String prefix = newPrefix();
+        byte[] bytes = upload(prefix, "_0.bin", 8 * CHUNK);
+        AtomicLong queries = new AtomicLong();
+        try (MongodbDirectory dir = new MongodbDirectory(TestMongo.countingChunkQueries(queries), prefix)) {
+            dir.setPaged(true);
+            dir.setPageChunks(2);
+            try (IndexInput in = dir.openInput("_0.bin", IOContext.DEFAULT)) {
+                // only the page at the start of the file
+                assertEquals(1, queries.get());
+                assertEquals(bytes[0], in.readByte());
+                assertEquals(1, queries.get());
+
+                in.seek(5 * CHUNK + 1);
+                assertEquals(bytes[5 * CHUNK + 1], in.readByte());
+                assertEquals(2, queries.get());
+                // same page
+                in.seek(4 * CHUNK);
+                assertEquals(bytes[4 * CHUNK], in.readByte());
+                assertEquals(2, queries.get());
+
+                in.seek(8 * CHUNK - 1);
+                assertEquals(bytes[8 * CHUNK - 1], in.readByte());
+                assertEquals(3, queries.get());
+                assertEquals(6 * CHUNK, ((MongodbIndexInput) in).ramBytesUsed());
+            }
+        }
+    }
+
+    private static long fetchQueries(MongodbDirectory dir, AtomicLong queries, String name, byte[] bytes)
+            throws Exception {
+        long before = queries.get();
+        try (IndexInput in = dir.openInput(name, IOContext.DEFAULT)) {
+            long fetched = queries.get() - before;
+            byte[] read = new byte[bytes.length];
+            in.readBytes(read, 0, read.length);
+            assertArrayEquals(bytes, read);
+            return fetched;
+        }
+    }
+
+    @Test
+    public void testRangeSplit() throws Exception {
+        String prefix = newPrefix();
+        int length = 4 * ChunkLoader.MIN_RANGE_CHUNKS * CHUNK;
+        byte[][] bytes = new byte[4][];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = upload(prefix, "_" + i + ".bin", length);
+        }
+        int jvmParallelism = MongodbDirectory.getMaxJvmFetchParallelism();
+        AtomicLong queries = new AtomicLong();
+        try (MongodbDirectory dir = new MongodbDirectory(TestMongo.countingChunkQueries(queries), prefix)) {
+            // 4 ranges of MIN_RANGE_CHUNKS chunks
+            assertEquals(4, fetchQueries(dir, queries, "_0.bin", bytes[0]));
+
+            dir.setFetchParallelism(1);
+            assertEquals(2, fetchQueries(dir, queries, "_1.bin", bytes[1]));
+            dir.setFetchParallelism(0);
+            assertEquals(1, fetchQueries(dir, queries, "_2.bin", bytes[2]));
+
+            dir.setFetchParallelism(4);
+            MongodbDirectory.setMaxJvmFetchParallelism(1);
+            assertEquals(2, fetchQueries(dir, queries, "_3.bin", bytes[3]));
+            // permits are given back
+            assertEquals(1, ChunkLoader.JVM_LIMIT.tryAcquire(1));
+            ChunkLoader.JVM_LIMIT.release(1);
+        } finally {
+            MongodbDirectory.setMaxJvmFetchParallelism(jvmParallelism);
+        }
+    }
+
+    @Test
+    public void testRejectedRangeWaitsForSubmittedRanges() throws Exception {
+        String prefix = newPrefix();
+        int chunks = 4 * ChunkLoader.MIN_RANGE_CHUNKS;
+        upload(prefix, "_0.bin", chunks * CHUNK);
+        GridFSFile file = GridFSBuckets.create(TestMongo.database()).find(eq("filename", prefix + "/_0.bin")).first();
+        ChunkLoader loader = new ChunkLoader(TestMongo.database().getCollection("fs.chunks"), MongodbChunkCache.INSTANCE);
+        // the first range runs late, the next one is rejected
+        AtomicInteger submitted = new AtomicInteger();
+        loader.executor = task -> {
+            if (submitted.incrementAndGet() > 1) {
+                throw new RejectedExecutionException();
+            }
+            new Thread(() -> {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                task.run();
+            }).start();
+        };
+        AtomicInteger received = new AtomicInteger();
+        try {
+            loader.fetch(file.getId(), 0, chunks - 1, doc -> received.incrementAndGet());
+            fail();
+        } catch (RejectedExecutionException expected) {
+        }
+        // the submitted range completed before fetch failed, and all permits are given back
+        assertEquals(ChunkLoader.MIN_RANGE_CHUNKS, received.get());
+        assertEquals(4, loader.directoryLimit.tryAcquire(4));
+    }
+
+    @Test
+    public void testDirectBuffersUseAfterClose() throws Exception {
+        String prefix = newPrefix();
+        byte[] bytes = upload(prefix, "_0.bin", 3 * CHUNK + 1);
+        try (MongodbDirectory dir = new MongodbDirectory(TestMongo.database(), prefix)) {
+            dir.setDirectBuffers(true);
+            for (boolean paged : new boolean[] {false, true}) {
+                dir.setPaged(paged);
+                IndexInput in = dir.openInput("_0.bin", IOContext.DEFAULT);
+                IndexInput clone = in.clone();
+                IndexInput slice = in.slice("slice", CHUNK, CHUNK);
+                clone.seek(2 * CHUNK);
+                assertEquals(bytes[2 * CHUNK], clone.readByte());
+                assertEquals(bytes[CHUNK], slice.readByte());
+                in.close();
+                // the off-heap chunks may be freed, clones must fail instead of reading them
+                try {
+                    clone.readByte();
+                    fail();
+                } catch (AlreadyClosedException expected) {
+                }
+                try {
+                    slice.seek(0);
+                    slice.readByte();
+                    fail();
+                } catch (AlreadyClosedException expected) {
+                }
+            }
+        }
+    }
+}
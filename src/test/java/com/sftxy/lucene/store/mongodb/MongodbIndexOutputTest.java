@@ -0,0 +1,257 @@
+package com.sftxy.lucene.store.mongodb;
+
+import static com.mongodb.client.model.Filters.*;
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+public class MongodbIndexOutputTest {
+
+    private static final int CHUNK = 1024;
+
+    @AfterClass
+    public static void afterClass() {
+        TestMongo.close();
+    }
+
+    private static String newPrefix() {
+        return "test-" + new ObjectId();
+    }
+
+    private static MongodbDirectory newDirectory(String prefix) {
+        MongodbDirectory dir = new MongodbDirectory(TestMongo.database(), prefix);
+        dir.setChunkSizePolicy(new ChunkSizePolicy() {
+            @Override
+            public int chunkSize(String name, IOContext context) {
+                return CHUNK;
+            }
+        });
+        return dir;
+    }
+
+    /**
+     * Creates an output of {@link #CHUNK} byte chunks, written in batches of 2 chunks with up to 4 in flight.
+     */
+    private static IndexOutput newOutput(String prefix, String name, MongoCollection<Document> chunks,
+                                         Executor executor) {
+        return new MongodbIndexOutput(prefix + "/" + name, new ObjectId(), TestMongo.database().getCollection("fs.files"),
+            chunks, CHUNK, false, 2, 4, executor, file -> { }, new MongodbMetrics(MongodbChunkCache.INSTANCE));
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String md5(byte[] bytes) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(bytes)) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] read(MongodbDirectory dir, String name) throws IOException {
+        try (IndexInput in = dir.openInput(name, IOContext.DEFAULT)) {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readBytes(bytes, 0, bytes.length);
+            return bytes;
+        }
+    }
+
+    private static long chunkCount(String prefix, String name) {
+        Document file = TestMongo.database().getCollection("fs.files").find(eq("filename", prefix + "/" + name)).first();
+        return TestMongo.database().getCollection("fs.chunks").count(eq("files_id", file.get("_id")));
+    }
+
+    private static List<Document> chunks(String prefix, String name) {
+        Document file = TestMongo.database().getCollection("fs.files").find(eq("filename", prefix + "/" + name)).first();
+        return TestMongo.database().getCollection("fs.chunks").find(eq("files_id", file.get("_id")))
+            .into(new ArrayList<>());
+    }
+
+    /**
+     * Wraps the given chunks collection, failing the given insertMany call (counted from 1), and counting the
+     * inserts running at once.
+     */
+    @SuppressWarnings("unchecked")
+    private static MongoCollection<Document> chunks(MongoCollection<Document> chunks, int failedInsert,
+                                                    AtomicInteger running, AtomicInteger maxRunning) {
+        AtomicInteger inserts = new AtomicInteger();
+        return (MongoCollection<Document>) Proxy.newProxyInstance(MongodbIndexOutputTest.class.getClassLoader(),
+            new Class<?>[] {MongoCollection.class}, (proxy, method, args) -> {
+                if (!method.getName().equals("insertMany")) {
+                    return method.invoke(chunks, args);
+                }
+                if (inserts.incrementAndGet() == failedInsert) {
+                    throw new MongoException("insertMany failed");
+                }
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    // let the writer submit the next batches meanwhile
+                    Thread.sleep(50);
+                    return method.invoke(chunks, args);
+                } finally {
+                    running.decrementAndGet();
+                }
+            });
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        String prefix = newPrefix();
+        try (MongodbDirectory dir = new MongodbDirectory(TestMongo.database(), prefix)) {
+            for (int length : new int[] {0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 5 * CHUNK + 7}) {
+                String name = "_" + length + ".bin";
+                byte[] bytes = randomBytes(length);
+                try (IndexOutput out = newOutput(prefix, name, TestMongo.database().getCollection("fs.chunks"),
+                        Runnable::run)) {
+                    // single bytes and arrays across chunk boundaries
+                    if (length > 0) {
+                        out.writeByte(bytes[0]);
+                        out.writeBytes(bytes, 1, length - 1);
+                    }
+                    assertEquals(length, out.getFilePointer());
+                }
+                assertEquals(length, dir.fileLength(name));
+                assertEquals((length + CHUNK - 1) / CHUNK, chunkCount(prefix, name));
+                assertEquals(md5(bytes), TestMongo.database().getCollection("fs.files")
+                    .find(eq("filename", prefix + "/" + name)).first().getString("md5"));
+                assertArrayEquals(name, bytes, read(dir, name));
+            }
+        }
+    }
+
+    @Test
+    public void testBatchesInFlight() throws Exception {
+        String prefix = newPrefix();
+        MongoDatabase db = TestMongo.database();
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        byte[] bytes = randomBytes(20 * CHUNK + 3);
+        try (MongodbDirectory dir = new MongodbDirectory(db, prefix)) {
+            try (IndexOutput out = newOutput(prefix, "_0.bin",
+                    chunks(db.getCollection("fs.chunks"), -1, running, maxRunning), executor)) {
+                out.writeBytes(bytes, bytes.length);
+            }
+            assertTrue("max batches in flight: " + maxRunning, maxRunning.get() > 1);
+            assertTrue("max batches in flight: " + maxRunning, maxRunning.get() <= 4);
+            assertEquals(21, chunkCount(prefix, "_0.bin"));
+            assertArrayEquals(bytes, read(dir, "_0.bin"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailedBatchCleansUp() throws Exception {
+        String prefix = newPrefix();
+        MongoDatabase db = TestMongo.database();
+        // only this output's chunks
+        MongoCollection<Document> chunks = db.getCollection(prefix + ".chunks");
+        try (MongodbDirectory dir = new MongodbDirectory(db, prefix)) {
+            // the first batch is written, the last one, submitted by close, fails
+            IndexOutput out = newOutput(prefix, "_0.bin",
+                chunks(chunks, 2, new AtomicInteger(), new AtomicInteger()), Runnable::run);
+            out.writeBytes(randomBytes(3 * CHUNK), 3 * CHUNK);
+            assertEquals(2, chunks.count());
+            try {
+                out.close();
+                fail();
+            } catch (IOException expected) {
+            }
+            assertEquals(0, chunks.count());
+            assertEquals(0, db.getCollection("fs.files").count(eq("filename", prefix + "/_0.bin")));
+            assertArrayEquals(new String[0], dir.listAll());
+        }
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws Exception {
+        String prefix = newPrefix();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < 4 * CHUNK; i++) {
+            sb.append("document ").append(i % 10).append(' ');
+        }
+        byte[] bytes = Arrays.copyOf(sb.toString().getBytes(StandardCharsets.UTF_8), 4 * CHUNK);
+        try (MongodbDirectory dir = newDirectory(prefix)) {
+            dir.setCompressedExtensions("fdt");
+            try (IndexOutput out = dir.createOutput("_0.fdt", IOContext.DEFAULT)) {
+                out.writeBytes(bytes, bytes.length);
+            }
+            assertEquals(bytes.length, dir.fileLength("_0.fdt"));
+            for (Document chunk : chunks(prefix, "_0.fdt")) {
+                assertNotNull(chunk.get(ChunkCodec.LZ4));
+                assertTrue(chunk.get("data", Binary.class).length() < chunk.getInteger(ChunkCodec.LZ4));
+            }
+            assertArrayEquals(bytes, read(dir, "_0.fdt"));
+        }
+    }
+
+    @Test
+    public void testIncompressibleChunksStoredRaw() throws Exception {
+        String prefix = newPrefix();
+        byte[] bytes = randomBytes(2 * CHUNK + 5);
+        try (MongodbDirectory dir = newDirectory(prefix)) {
+            dir.setCompressedExtensions("fdt");
+            try (IndexOutput out = dir.createOutput("_0.fdt", IOContext.DEFAULT)) {
+                out.writeBytes(bytes, bytes.length);
+            }
+            List<Document> chunks = chunks(prefix, "_0.fdt");
+            assertEquals(3, chunks.size());
+            for (Document chunk : chunks) {
+                assertNull(chunk.get(ChunkCodec.LZ4));
+            }
+            assertArrayEquals(bytes, read(dir, "_0.fdt"));
+        }
+    }
+
+    @Test
+    public void testReadsChunksWithoutCompression() throws Exception {
+        String prefix = newPrefix();
+        byte[] bytes = randomBytes(2 * CHUNK + 5);
+        // a file written before compression was enabled, as plain GridFS chunks
+        ObjectId id = new ObjectId();
+        MongoDatabase db = TestMongo.database();
+        for (int n = 0; n * CHUNK < bytes.length; n++) {
+            db.getCollection("fs.chunks").insertOne(new Document("files_id", id).append("n", n)
+                .append("data", new Binary(Arrays.copyOfRange(bytes, n * CHUNK, Math.min(bytes.length, (n + 1) * CHUNK)))));
+        }
+        db.getCollection("fs.files").insertOne(new Document("_id", id).append("filename", prefix + "/_0.fdt")
+            .append("length", (long) bytes.length).append("chunkSize", CHUNK).append("uploadDate", new Date())
+            .append("md5", ""));
+        try (MongodbDirectory dir = newDirectory(prefix)) {
+            dir.setCompressedExtensions("fdt");
+            assertArrayEquals(bytes, read(dir, "_0.fdt"));
+            dir.setPaged(true);
+            assertArrayEquals(bytes, read(dir, "_0.fdt"));
+        }
+    }
+}
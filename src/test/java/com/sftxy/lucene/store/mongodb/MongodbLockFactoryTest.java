@@ -0,0 +1,100 @@
+package com.sftxy.lucene.store.mongodb;
+
+import static org.junit.Assert.*;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.store.LockObtainFailedException;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+public class MongodbLockFactoryTest {
+
+    @AfterClass
+    public static void afterClass() {
+        TestMongo.close();
+    }
+
+    @Test
+    public void testEnsureValidWithoutQuery() throws Exception {
+        try (MongodbDirectory dir = new MongodbDirectory(TestMongo.database(), "test-" + new ObjectId())) {
+            try (Lock lock = dir.obtainLock("write.lock")) {
+                for (int i = 0; i < 100; i++) {
+                    lock.ensureValid();
+                }
+                assertEquals(0, dir.getMetrics().getLockVerifies().getCount());
+                try {
+                    dir.obtainLock("write.lock");
+                    fail();
+                } catch (LockObtainFailedException expected) {
+                }
+            }
+            // released
+            dir.obtainLock("write.lock").close();
+        }
+    }
+
+    @Test
+    public void testExpiredLockIsTakenOver() throws Exception {
+        String prefix = "test-" + new ObjectId();
+        // left by a crashed owner
+        TestMongo.database().getCollection("fs.locks").insertOne(new Document("_id", prefix + "/write.lock")
+            .append("owner", "crashed").append("expiresAt", new Date(System.currentTimeMillis() - 1000)));
+        try (MongodbDirectory dir = new MongodbDirectory(TestMongo.database(), prefix)) {
+            try (Lock lock = dir.obtainLock("write.lock")) {
+                lock.ensureValid();
+            }
+        }
+    }
+
+    @Test
+    public void testLostLockIsDetected() throws Exception {
+        String prefix = "test-" + new ObjectId();
+        try (MongodbDirectory dir = new MongodbDirectory(TestMongo.database(), prefix)) {
+            dir.setLockLease(300, TimeUnit.MILLISECONDS);
+            Lock lock = dir.obtainLock("write.lock");
+            TestMongo.database().getCollection("fs.locks").deleteOne(new Document("_id", prefix + "/write.lock"));
+            // detected by the heartbeat, or by ensureValid once the lease is about to expire
+            Thread.sleep(300);
+            try {
+                lock.ensureValid();
+                fail();
+            } catch (AlreadyClosedException expected) {
+            }
+            assertTrue(dir.getMetrics().getLockVerifies().getCount() > 0);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testDeprecatedLockMethods() throws Exception {
+        try (MongodbDirectory dir = new MongodbDirectory(TestMongo.database(), "test-" + new ObjectId())) {
+            assertFalse(dir.checkLock("write.lock"));
+            dir.createLock("write.lock");
+            assertTrue(dir.checkLock("write.lock"));
+            try {
+                dir.createLock("write.lock");
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+            // shares the lease of locks from obtainLock
+            try {
+                dir.obtainLock("write.lock");
+                fail();
+            } catch (LockObtainFailedException expected) {
+            }
+            assertTrue(dir.removeLock("write.lock"));
+            assertFalse(dir.removeLock("write.lock"));
+            assertFalse(dir.checkLock("write.lock"));
+            try (Lock lock = dir.obtainLock("write.lock")) {
+                lock.ensureValid();
+                assertTrue(dir.checkLock("write.lock"));
+            }
+        }
+    }
+}
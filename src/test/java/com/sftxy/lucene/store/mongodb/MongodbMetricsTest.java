@@ -0,0 +1,53 @@
+package com.sftxy.lucene.store.mongodb;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.store.IOContext;
+import org.junit.Test;
+
+import com.sftxy.lucene.store.mongodb.MongodbMetrics.Histogram;
+
+public class MongodbMetricsTest {
+
+    @Test
+    public void testHistogramPercentiles() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getP50Nanos());
+
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1000);
+        }
+        histogram.record(1_000_000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(99 * 1000 + 1_000_000, histogram.getTotalNanos());
+        assertEquals(1_000_000, histogram.getMaxNanos());
+        // bucket upper bounds: 1000 is in [512, 1023]
+        assertEquals(1023, histogram.getP50Nanos());
+        assertEquals(1023, histogram.getP99Nanos());
+        assertEquals(1_000_000, histogram.getPercentileNanos(1.0));
+    }
+
+    @Test
+    public void testOpenInputsByKindAndListener() {
+        MongodbMetrics metrics = new MongodbMetrics(new MongodbChunkCache(0));
+        AtomicLong opened = new AtomicLong();
+        metrics.setListener(new MongodbMetrics.Listener() {
+            @Override
+            public void onOpenInput(String name, IOContext context, long nanos) {
+                opened.addAndGet(nanos);
+            }
+        });
+
+        metrics.openInput("_0.doc", IOContext.READ, 10);
+        metrics.openInput("_1.doc", IOContext.READ, 20);
+        metrics.openInput("segments_2", IOContext.READONCE, 30);
+
+        assertEquals(3, metrics.getOpenInputs().getCount());
+        assertEquals(2, metrics.getOpenInputsByKind().get("doc/READ").getCount());
+        assertEquals(1, metrics.getOpenInputsByKind().get("none/READ").getCount());
+        assertEquals(60, opened.get());
+    }
+}
@@ -0,0 +1,103 @@
+package com.sftxy.lucene.store.mongodb;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+/**
+ * MongoDB used by tests and benchmarks.
+ *
+ * <p>Connects to the server given by the {@code tests.mongodb.uri} system property or the {@code MONGODB_URI}
+ * environment variable, e.g. {@code mongodb://127.0.0.1:27017/test} for a local mongod. Without either, an
+ * in-memory MongoDB stand-in is started in this JVM, shared by all callers until {@link #close()}.</p>
+ */
+final class TestMongo {
+
+    private static MongoServer server;
+    private static MongoClient client;
+    private static String database = "test";
+
+    private TestMongo() {}
+
+    static synchronized MongoClient client() {
+        if (client == null) {
+            String uri = System.getProperty("tests.mongodb.uri", System.getenv("MONGODB_URI"));
+            if (uri == null) {
+                server = new MongoServer(new MemoryBackend());
+                InetSocketAddress address = server.bind();
+                uri = "mongodb://" + address.getHostString() + ":" + address.getPort() + "/test";
+            }
+            MongoClientURI clientURI = new MongoClientURI(uri);
+            if (clientURI.getDatabase() != null) {
+                database = clientURI.getDatabase();
+            }
+            client = new MongoClient(clientURI);
+        }
+        return client;
+    }
+
+    /**
+     * Closes the client, and stops the stand-in if one was started, whose threads keep the JVM alive.
+     */
+    static synchronized void close() {
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+        if (server != null) {
+            server.shutdownNow();
+            server = null;
+        }
+    }
+
+    static MongoDatabase database() {
+        return client().getDatabase(database);
+    }
+
+    /**
+     * Returns the {@link #database()}, counting the find queries made on its chunks collections.
+     */
+    static MongoDatabase countingChunkQueries(AtomicLong queries) {
+        return counting(MongoDatabase.class, database(), queries);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T counting(Class<T> type, T target, AtomicLong queries) {
+        return (T) Proxy.newProxyInstance(TestMongo.class.getClassLoader(), new Class<?>[] {type},
+            (proxy, method, args) -> {
+                final Object result;
+                try {
+                    result = method.invoke(target, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+                if (result instanceof MongoDatabase) {
+                    return counting(MongoDatabase.class, (MongoDatabase) result, queries);
+                }
+                if (result instanceof MongoCollection
+                        && ((MongoCollection<?>) result).getNamespace().getCollectionName().endsWith(".chunks")) {
+                    return counting(MongoCollection.class, (MongoCollection<?>) result, queries);
+                }
+                if (type == MongoCollection.class && method.getName().equals("find")) {
+                    queries.incrementAndGet();
+                }
+                return result;
+            });
+    }
+
+    /**
+     * Returns whether tests run against the in-memory stand-in rather than a real server.
+     */
+    static boolean isStandIn() {
+        return System.getProperty("tests.mongodb.uri", System.getenv("MONGODB_URI")) == null;
+    }
+}